@@ -1,7 +1,10 @@
 ﻿#ifndef ASYNC_DECODER_H
 #define ASYNC_DECODER_H
 
+#include <condition_variable>
+
 #include "decoder.h"
+#include "object_pool.h"
 
 namespace ffmpeg {
 
@@ -23,7 +26,7 @@ class AsyncDecoder {
       onInit(stopFlag);
 
       while (!stopFlag.stopRequested()) {
-        Frame frame;
+        auto frame = mFrames.acquire();
         ret = this->mDecoder.decode(frame);
         if (ret != 0 && ret != AVERROR(EAGAIN)) {
           onClose(stopFlag);
@@ -54,7 +57,7 @@ class AsyncDecoder {
           onInit(stopFlag);
 
           while (!stopFlag.stopRequested()) {
-            Frame frame;
+            auto frame = mFrames.acquire();
             ret = this->mDecoder.decode(frame);
             if (ret != 0 && ret != AVERROR(EAGAIN)) {
               onClose(stopFlag);
@@ -70,8 +73,124 @@ class AsyncDecoder {
     return true;
   }
 
+  // Decodes the packets returned by readPacket, see Decoder::decode(). The
+  // parameters are copied, the caller does not have to keep them alive.
+  // useHWDeocder tries the hardware probe list first.
+  bool start(const AVCodecParameters* parameters, AVRational packetTimeBase,
+             const std::function<int(Packet&)>& readPacket,
+             bool useHWDeocder = false) {
+    if (mThread != nullptr) return false;
+
+    std::shared_ptr<AVCodecParameters> codecpar(
+        avcodec_parameters_alloc(),
+        [](AVCodecParameters* p) { avcodec_parameters_free(&p); });
+    if (codecpar == nullptr ||
+        avcodec_parameters_copy(codecpar.get(), parameters) < 0)
+      return false;
+
+    mThread.reset(new JoinThread([this, codecpar, packetTimeBase, readPacket,
+                                  useHWDeocder](
+                                     JoinThread::StopFlag& stopFlag) {
+      auto ret =
+          this->mDecoder.init(codecpar.get(), packetTimeBase, useHWDeocder);
+      if (ret < 0) {
+        mError = ret;
+        onClose(stopFlag);
+        return;
+      }
+
+      setDecoding(true);
+      onInit(stopFlag);
+
+      while (!stopFlag.stopRequested()) {
+        if (mFlushRequested) {
+          this->mDecoder.flush();
+          std::lock_guard<std::mutex> lock(mFlushMutex);
+          mFlushRequested = false;
+          mFlushCond.notify_all();
+        }
+
+        auto frame = mFrames.acquire();
+        ret = this->mDecoder.decode(readPacket, frame);
+        if (ret == AVERROR(EAGAIN) || (ret == 0 && mFlushRequested)) {
+          mFrames.release(std::move(frame));
+          continue;
+        }
+        if (ret != 0) {
+          mError = ret;
+          setDecoding(false);
+          onClose(stopFlag);
+          return;
+        }
+        onDecode(stopFlag, std::move(frame));
+      }
+
+      setDecoding(false);
+      onClose(stopFlag);
+    }));
+
+    return true;
+  }
+
   void stop() noexcept { mThread = nullptr; }
 
+  // Makes a decoder started with readPacket drop what the codec holds, e.g.
+  // the delayed frames of frame threading, before it reads the next packet.
+  // Frames decoded before that do not reach onDecode. Waits until it
+  // happened and calls whileWaiting meanwhile, so a blocked onDecode can be
+  // released.
+  void flush(const std::function<void()>& whileWaiting) {
+    mFlushRequested = true;
+    std::unique_lock<std::mutex> lock(mFlushMutex);
+    while (mFlushRequested && mDecoding) {
+      lock.unlock();
+      whileWaiting();
+      lock.lock();
+      mFlushCond.wait_for(lock, std::chrono::milliseconds(FLUSH_POLL_MS));
+    }
+  }
+
+  // The error that ended decoding, 0 while running or after stop().
+  int error() const noexcept { return mError; }
+
+  // Must be called before start().
+  void setThreading(const DecoderThreading& threading) noexcept {
+    mDecoder.setThreading(threading);
+  }
+
+  // Must be called before start().
+  void setHardwareProbeList(std::vector<AVHWDeviceType> types) {
+    mDecoder.setHardwareProbeList(std::move(types));
+  }
+
+  // Backend the decoder picked, valid once onInit ran.
+  AVHWDeviceType hardwareType() const noexcept {
+    return mDecoder.hardwareType();
+  }
+
+  const char* hardwareName() const noexcept { return mDecoder.hardwareName(); }
+
+  // Hands a frame passed to onDecode back for reuse. Frames that are not
+  // recycled are simply freed.
+  void recycle(Frame&& frame) { mFrames.release(std::move(frame)); }
+
+  const FramePool::Statistics& framePoolStatistics() const noexcept {
+    return mFrames.statistics();
+  }
+
+  const PacketPool::Statistics& packetPoolStatistics() const noexcept {
+    return mDecoder.packetPoolStatistics();
+  }
+
+  // See Decoder::lastDecodeTimeUs(), safe to call while decoding.
+  int64_t lastDecodeTimeUs() const noexcept {
+    return mDecoder.lastDecodeTimeUs();
+  }
+
+  int64_t averageDecodeTimeUs() const noexcept {
+    return mDecoder.averageDecodeTimeUs();
+  }
+
   double frameRate() noexcept { return mDecoder.frameRate(); }
 
   std::function<void(JoinThread::StopFlag&)> onInit =
@@ -84,8 +203,23 @@ class AsyncDecoder {
       [](JoinThread::StopFlag&) {};
 
  private:
+  static constexpr size_t FRAME_POOL_SIZE = 8;
+  static constexpr int FLUSH_POLL_MS = 10;
+
   Decoder mDecoder;
+  FramePool mFrames{FRAME_POOL_SIZE};
   std::unique_ptr<JoinThread> mThread = nullptr;
+  std::atomic<int> mError{0};
+  std::atomic<bool> mDecoding{false};
+  std::atomic<bool> mFlushRequested{false};
+  std::mutex mFlushMutex;
+  std::condition_variable mFlushCond;
+
+  void setDecoding(bool decoding) {
+    std::lock_guard<std::mutex> lock(mFlushMutex);
+    mDecoding = decoding;
+    mFlushCond.notify_all();
+  }
 };
 
 }  // namespace ffmpeg
@@ -54,6 +54,8 @@ class CodecContext {
         return avcodec_receive_frame(mCodecCtx.get(), frame);
     }
 
+    void flushBuffers() noexcept { avcodec_flush_buffers(mCodecCtx.get()); }
+
     AVCodecContext* ptr() { return mCodecCtx.get(); }
 
    private:
@@ -1,23 +1,120 @@
 ﻿#ifndef FFMPEG_DECODER_H
 #define FFMPEG_DECODER_H
 
+#include <algorithm>
+#include <atomic>
 #include <chrono>
+#include <cstdio>
 #include <functional>
+#include <map>
+#include <mutex>
 #include <string>
+#include <thread>
 #include <unordered_set>
 #include <vector>
 
 #include "codec_context.h"
 #include "format_context.h"
 #include "frame.h"
+#include "object_pool.h"
 #include "packet.h"
 
 namespace ffmpeg {
 
+// How software decoding is spread over threads. Frame threading decodes
+// several frames at once and delays the output by one frame per thread,
+// slice threading splits single frames and only helps streams encoded with
+// many slices. FFmpeg picks whichever of the allowed types the codec supports.
+struct DecoderThreading {
+    int type = FF_THREAD_FRAME | FF_THREAD_SLICE;
+
+    // Number of threads, 0 for one per big core.
+    int count = 0;
+};
+
 class Decoder {
    public:
     Decoder() noexcept {}
 
+    // Hardware device types the useHWDeocder init()s try in order before
+    // falling back to software decoding. Frames of types that decode into
+    // GPU surfaces are copied back to system memory.
+    static std::vector<AVHWDeviceType> defaultHardwareProbeList() {
+        return {AV_HWDEVICE_TYPE_MEDIACODEC, AV_HWDEVICE_TYPE_VAAPI,
+                AV_HWDEVICE_TYPE_D3D11VA, AV_HWDEVICE_TYPE_DXVA2,
+                AV_HWDEVICE_TYPE_CUDA};
+    }
+
+    // Takes effect on the next init().
+    void setHardwareProbeList(std::vector<AVHWDeviceType> types) {
+        mHardwareProbeList = std::move(types);
+    }
+
+    // Device type decoding runs on, AV_HWDEVICE_TYPE_NONE for software.
+    AVHWDeviceType hardwareType() const noexcept { return mHardwareType; }
+
+    const char* hardwareName() const noexcept {
+        auto type = mHardwareType.load();
+        return type == AV_HWDEVICE_TYPE_NONE ? "software"
+                                             : av_hwdevice_get_type_name(type);
+    }
+
+    // The probe result of every codec is kept for the process lifetime.
+    // Clear it after changing the probe list.
+    static void clearHardwareCache() {
+        std::lock_guard<std::mutex> lock(hardwareCacheMutex());
+        hardwareCache().clear();
+    }
+
+    // Takes effect on the next init().
+    void setThreading(const DecoderThreading& threading) noexcept {
+        mThreading = threading;
+    }
+
+    // Wall time the last frame spent in the decoder, excluding the wait for
+    // its packets, and a moving average of it.
+    int64_t lastDecodeTimeUs() const noexcept { return mLastDecodeTimeUs; }
+
+    int64_t averageDecodeTimeUs() const noexcept {
+        return mAverageDecodeTimeUs;
+    }
+
+    const PacketPool::Statistics& packetPoolStatistics() const noexcept {
+        return mPackets.statistics();
+    }
+
+    // Cores of the fastest cluster, all cores on symmetric CPUs.
+    static int bigCoreCount() noexcept {
+        int cores = (int)std::thread::hardware_concurrency();
+        if (cores <= 0) return 1;
+
+        std::vector<long> maxFreqs;
+        for (int i = 0; i < cores; ++i) {
+            auto path = "/sys/devices/system/cpu/cpu" + std::to_string(i) +
+                        "/cpufreq/cpuinfo_max_freq";
+            auto file = fopen(path.c_str(), "r");
+            if (file == nullptr) return cores;
+
+            long freq = 0;
+            auto read = fscanf(file, "%ld", &freq);
+            fclose(file);
+            if (read != 1) return cores;
+            maxFreqs.push_back(freq);
+        }
+
+        auto fastest = *std::max_element(maxFreqs.begin(), maxFreqs.end());
+        auto count = std::count(maxFreqs.begin(), maxFreqs.end(), fastest);
+        // A single prime core is not worth a thread of its own, take the
+        // next cluster as well.
+        if (count == 1 && cores > 1) {
+            long next = 0;
+            for (auto freq : maxFreqs)
+                if (freq < fastest && freq > next) next = freq;
+            count += std::count(maxFreqs.begin(), maxFreqs.end(), next);
+        }
+        return (int)count;
+    }
+
     int init(const std::function<int(uint8_t*, int)>& readCb,
              uint32_t bufSize = 4 * 1024 * 1024,
              AVHWDeviceType hardware = AV_HWDEVICE_TYPE_NONE,
@@ -31,10 +128,11 @@ class Decoder {
         if (index < 0 || codec == nullptr) return index;
         mVideoStreamIndex = index;
 
+        auto codecpar = mInputFmtCtx->streams[mVideoStreamIndex]->codecpar;
         if (hardware == AV_HWDEVICE_TYPE_NONE) {
-            return initCodecContext(codec);
+            return initCodecContext(codec, codecpar);
         } else {
-            return initCodecContext(codec, hardware);
+            return initCodecContext(codec, codecpar, hardware);
         }
     }
 
@@ -50,19 +148,9 @@ class Decoder {
         if (index < 0 || codec == nullptr) return index;
         mVideoStreamIndex = index;
 
-        if (useHWDeocder) {
-            int ret = 0;
-
-            ret = initCodecContext(codec, AV_HWDEVICE_TYPE_D3D11VA);
-            if (ret >= 0) return ret;
-
-            ret = initCodecContext(codec, AV_HWDEVICE_TYPE_DXVA2);
-            if (ret >= 0) return ret;
-
-            ret = initCodecContext(codec, AV_HWDEVICE_TYPE_CUDA);
-            if (ret >= 0) return ret;
-        }
-        return initCodecContext(codec);
+        auto codecpar = mInputFmtCtx->streams[mVideoStreamIndex]->codecpar;
+        if (useHWDeocder) return probeCodecContext(codec, codecpar);
+        return initCodecContext(codec, codecpar);
     }
 
     int init(const std::string& url,
@@ -77,10 +165,11 @@ class Decoder {
         if (index < 0 || codec == nullptr) return index;
         mVideoStreamIndex = index;
 
+        auto codecpar = mInputFmtCtx->streams[mVideoStreamIndex]->codecpar;
         if (hardware == AV_HWDEVICE_TYPE_NONE) {
-            return initCodecContext(codec);
+            return initCodecContext(codec, codecpar);
         } else {
-            return initCodecContext(codec, hardware);
+            return initCodecContext(codec, codecpar, hardware);
         }
     }
 
@@ -95,40 +184,75 @@ class Decoder {
         if (index < 0 || codec == nullptr) return index;
         mVideoStreamIndex = index;
 
-        if (useHWDeocder) {
-            int ret = 0;
+        auto codecpar = mInputFmtCtx->streams[mVideoStreamIndex]->codecpar;
+        if (useHWDeocder) return probeCodecContext(codec, codecpar);
+        return initCodecContext(codec, codecpar);
+    }
 
-            ret = initCodecContext(codec, AV_HWDEVICE_TYPE_D3D11VA);
-            if (ret >= 0) return ret;
+    // Decodes packets handed in through decode(readPacket, frame) instead of
+    // reading an input. Packet timestamps are in packetTimeBase.
+    int init(const AVCodecParameters* parameters, AVRational packetTimeBase,
+             bool useHWDeocder = false) {
+        auto codec = avcodec_find_decoder(parameters->codec_id);
+        if (codec == nullptr) return AVERROR_DECODER_NOT_FOUND;
 
-            ret = initCodecContext(codec, AV_HWDEVICE_TYPE_DXVA2);
-            if (ret >= 0) return ret;
+        mPacketTimeBase = packetTimeBase;
+        if (useHWDeocder) return probeCodecContext(codec, parameters);
+        return initCodecContext(codec, parameters);
+    }
 
-            ret = initCodecContext(codec, AV_HWDEVICE_TYPE_CUDA);
-            if (ret >= 0) return ret;
-        }
-        return initCodecContext(codec);
+    // readPacket fills the packet and returns its size, 0 if none is
+    // available yet or a negative error.
+    int decode(const std::function<int(Packet&)>& readPacket, Frame& frame) {
+        auto ret = receiveFrame(frame);
+        if (ret != AVERROR(EAGAIN)) return ret;
+
+        auto lease = mPackets.lease();
+        auto& packet = *lease;
+        ret = readPacket(packet);
+        if (ret == 0) return AVERROR(EAGAIN);
+        if (ret < 0) return ret;
+
+        auto begin = std::chrono::steady_clock::now();
+
+        // A corrupt packet only costs the pictures that depend on it.
+        ret = mCodecCtx.sendPacket(packet.get());
+        mPendingDecodeTime += std::chrono::steady_clock::now() - begin;
+        if (ret == AVERROR_INVALIDDATA) return AVERROR(EAGAIN);
+        if (ret < 0) return ret;
+
+        return receiveFrame(frame);
+    }
+
+    // Drops the packets and frames the codec holds, before decoding goes on
+    // at another position of the stream.
+    void flush() noexcept {
+        if (mCodecCtx.get()) mCodecCtx.flushBuffers();
     }
 
     int decode(Frame& frame) {
-        auto ret = mCodecCtx.receiveFrame(frame.get());
+        auto ret = receiveFrame(frame);
         if (ret == 0)
             return 0;
         else if (ret != AVERROR(EAGAIN))
             return ret;
 
-        Packet packet;
+        auto lease = mPackets.lease();
+        auto& packet = *lease;
         while (true) {
+            packet.unref();
             ret = mInputFmtCtx.readFrame(packet.get());
             if (ret < 0) return ret;
             if (packet->stream_index == mVideoStreamIndex) break;
         }
 
+        auto begin = std::chrono::steady_clock::now();
+
         ret = mCodecCtx.sendPacket(packet.get());
+        mPendingDecodeTime += std::chrono::steady_clock::now() - begin;
         if (ret < 0) return ret;
 
-        ret = mCodecCtx.receiveFrame(frame.get());
-        return ret;
+        return receiveFrame(frame);
     }
 
     double frameRate() const noexcept {
@@ -146,28 +270,161 @@ class Decoder {
 
     int mVideoStreamIndex = -1;
 
-    int initCodecContext(AVCodec* codec) noexcept {
-        mCodecCtx = CodecContext(codec);
+    DecoderThreading mThreading;
+    PacketPool mPackets{1};
+    std::vector<AVHWDeviceType> mHardwareProbeList = defaultHardwareProbeList();
+    AVRational mPacketTimeBase{0, 1};
+    Frame mTransferFrame;
+    std::atomic<AVHWDeviceType> mHardwareType{AV_HWDEVICE_TYPE_NONE};
+    std::chrono::steady_clock::duration mPendingDecodeTime{0};
+    std::atomic<int64_t> mLastDecodeTimeUs{0};
+    std::atomic<int64_t> mAverageDecodeTimeUs{0};
+
+    void applyThreading() noexcept {
+        mCodecCtx->thread_type = mThreading.type;
+        mCodecCtx->thread_count =
+            mThreading.count > 0 ? mThreading.count : bigCoreCount();
+    }
 
-        auto codecpar = mInputFmtCtx->streams[mVideoStreamIndex]->codecpar;
+    // receive_frame() with the time spent in the decoder accounted to the
+    // frame it returns.
+    int receiveFrame(Frame& frame) noexcept {
+        auto begin = std::chrono::steady_clock::now();
+        auto ret = mCodecCtx.receiveFrame(frame.get());
+        if (ret == 0 && frame->hw_frames_ctx) ret = transferFrame(frame);
+        mPendingDecodeTime += std::chrono::steady_clock::now() - begin;
+        if (ret == 0) frameDecoded();
+        return ret;
+    }
+
+    // Replaces a frame in a GPU surface by a copy in system memory.
+    // MediaCodec without an output surface already decodes into memory.
+    int transferFrame(Frame& frame) noexcept {
+        mTransferFrame.unref();
+        auto ret =
+            av_hwframe_transfer_data(mTransferFrame.get(), frame.get(), 0);
+        if (ret < 0) return ret;
+        ret = av_frame_copy_props(mTransferFrame.get(), frame.get());
+        if (ret < 0) return ret;
+
+        frame.unref();
+        av_frame_move_ref(frame.get(), mTransferFrame.get());
+        return 0;
+    }
+
+    void frameDecoded() noexcept {
+        int64_t us = std::chrono::duration_cast<std::chrono::microseconds>(
+                         mPendingDecodeTime)
+                         .count();
+        mPendingDecodeTime = std::chrono::steady_clock::duration(0);
+
+        int64_t average = mAverageDecodeTimeUs;
+        mAverageDecodeTimeUs = average == 0 ? us : average + (us - average) / 16;
+        mLastDecodeTimeUs = us;
+    }
+
+    static std::mutex& hardwareCacheMutex() {
+        static std::mutex mutex;
+        return mutex;
+    }
+
+    static std::map<AVCodecID, AVHWDeviceType>& hardwareCache() {
+        static std::map<AVCodecID, AVHWDeviceType> cache;
+        return cache;
+    }
+
+    // Tries the probe list, starting with the type that worked for the
+    // codec before, and falls back to software decoding.
+    int probeCodecContext(AVCodec* codec, const AVCodecParameters* codecpar) {
+        bool cached = false;
+        auto cachedType = AV_HWDEVICE_TYPE_NONE;
+        {
+            std::lock_guard<std::mutex> lock(hardwareCacheMutex());
+            auto it = hardwareCache().find(codec->id);
+            if (it != hardwareCache().end()) {
+                cached = true;
+                cachedType = it->second;
+            }
+        }
+
+        if (cached) {
+            if (cachedType == AV_HWDEVICE_TYPE_NONE)
+                return initCodecContext(codec, codecpar);
+            if (initHardwareCodecContext(codec, codecpar, cachedType) >= 0)
+                return 0;
+        }
+
+        auto found = AV_HWDEVICE_TYPE_NONE;
+        for (auto type : mHardwareProbeList) {
+            if (initHardwareCodecContext(codec, codecpar, type) >= 0) {
+                found = type;
+                break;
+            }
+        }
+
+        {
+            std::lock_guard<std::mutex> lock(hardwareCacheMutex());
+            hardwareCache()[codec->id] = found;
+        }
+        if (found != AV_HWDEVICE_TYPE_NONE) return 0;
+        return initCodecContext(codec, codecpar);
+    }
+
+    // MediaCodec is a decoder of its own in FFmpeg, e.g. h264_mediacodec,
+    // the other types are hwaccels of the native decoder.
+    int initHardwareCodecContext(AVCodec* codec,
+                                 const AVCodecParameters* codecpar,
+                                 AVHWDeviceType type) {
+        if (type == AV_HWDEVICE_TYPE_MEDIACODEC) {
+            auto name = std::string(codec->name) + "_mediacodec";
+            codec = avcodec_find_decoder_by_name(name.c_str());
+            if (codec == nullptr) return AVERROR_DECODER_NOT_FOUND;
+        }
+        if (!supportsHardware(codec, type)) return AVERROR(ENOSYS);
+
+        return initCodecContext(codec, codecpar, type);
+    }
+
+    static bool supportsHardware(const AVCodec* codec,
+                                 AVHWDeviceType type) noexcept {
+        for (int i = 0;; ++i) {
+            auto config = avcodec_get_hw_config(codec, i);
+            if (config == nullptr) return false;
+            if (config->device_type == type &&
+                (config->methods & AV_CODEC_HW_CONFIG_METHOD_HW_DEVICE_CTX))
+                return true;
+        }
+    }
+
+    int initCodecContext(AVCodec* codec,
+                         const AVCodecParameters* codecpar) noexcept {
+        mHardwareType = AV_HWDEVICE_TYPE_NONE;
+        mCodecCtx = CodecContext(codec);
 
         auto ret = mCodecCtx.setParameter(codecpar);
         if (ret < 0) return ret;
 
+        if (mPacketTimeBase.num > 0) mCodecCtx->pkt_timebase = mPacketTimeBase;
+        applyThreading();
         return mCodecCtx.open(codec);
     }
 
-    int initCodecContext(AVCodec* codec, AVHWDeviceType hw) noexcept {
+    int initCodecContext(AVCodec* codec, const AVCodecParameters* codecpar,
+                         AVHWDeviceType hw) noexcept {
+        mHardwareType = AV_HWDEVICE_TYPE_NONE;
         mCodecCtx = CodecContext(codec);
 
-        auto codecpar = mInputFmtCtx->streams[mVideoStreamIndex]->codecpar;
         auto ret = mCodecCtx.setParameter(codecpar);
         if (ret < 0) return ret;
 
         ret = mCodecCtx.createHardwareContext(hw);
         if (ret < 0) return ret;
 
-        return mCodecCtx.open(codec);
+        if (mPacketTimeBase.num > 0) mCodecCtx->pkt_timebase = mPacketTimeBase;
+        applyThreading();
+        ret = mCodecCtx.open(codec);
+        if (ret >= 0) mHardwareType = hw;
+        return ret;
     }
 };
 
@@ -8,19 +8,90 @@
 #define FFMPEG_DEMUXER_H
 
 #include "format_context.h"
+#include "object_pool.h"
 #include "packet.h"
+#include "recorder.h"
+#include <algorithm>
+#include <atomic>
+#include <chrono>
 #include <cmath>
+#include <memory>
+#include <mutex>
+#include <vector>
 
 namespace ffmpeg {
 
 class Demuxer {
    public:
+    struct StartupOptions {
+        FormatContext::InputOptions input;
+
+        // Flush every packet to the output callbacks right away.
+        bool flushPackets = false;
+
+        // Skip avformat_find_stream_info() when the header already described
+        // every stream completely. Formats that only learn about their
+        // streams from the packets are probed as usual.
+        bool skipStreamInfo = false;
+    };
+
+    // Microseconds from the start of openInput() to the end of each phase,
+    // -1 until it is reached.
+    struct StartupTimings {
+        std::atomic<int64_t> openUs{-1};
+        std::atomic<int64_t> streamInfoUs{-1};
+        std::atomic<int64_t> firstVideoPacketUs{-1};
+    };
+
+    // Takes effect on the next openInput() and open*Output().
+    void setStartupOptions(const StartupOptions& options) noexcept {
+        mStartupOptions = options;
+    }
+
+    const StartupTimings& startupTimings() const noexcept { return mTimings; }
+
     template <typename T>
     int openInput(T&& t, std::string fmt = "") noexcept {
-        int ret = mInput.openInput(std::forward<T>(t), fmt);
+        mOpenTime = std::chrono::steady_clock::now();
+        mTimings.openUs = -1;
+        mTimings.streamInfoUs = -1;
+        mTimings.firstVideoPacketUs = -1;
+
+        int ret = openInputContext(std::forward<T>(t), fmt);
         if (ret < 0) return ret;
+        mTimings.streamInfoUs = sinceOpen();
+        return ret;
+    }
 
-        return mInput.findStreamInfo();
+    // Opens the input again after it failed, e.g. a dropped connection. The
+    // outputs stay open and continue with the packets of the new input, so
+    // it has to carry the same streams. A recording whose streams the new
+    // input does not match is finished, stopRecording() then returns
+    // AVERROR_INPUT_CHANGED.
+    template <typename T>
+    int reopenInput(T&& t, std::string fmt = "") noexcept {
+        mInput = FormatContext();
+        mKeyFrames.clear();
+
+        int ret = openInputContext(std::forward<T>(t), fmt);
+        if (ret < 0) return ret;
+
+        if (mVideoOutput.isOpened()) {
+            mVideoIndex = mInput.findBestStream(AVMEDIA_TYPE_VIDEO);
+            if (mVideoIndex < 0) return mVideoIndex;
+        }
+        if (mAudioOutput.isOpened()) {
+            mAudioIndex = mInput.findBestStream(AVMEDIA_TYPE_AUDIO);
+            if (mAudioIndex < 0) closeAudioOutput();
+        }
+
+        std::lock_guard<std::mutex> lock(mRecorderMutex);
+        if (mRecorder && !mRecorder->matches(recordedStream(mVideoIndex,
+                                                            mVideoOutput),
+                                             recordedStream(mAudioIndex,
+                                                            mAudioOutput)))
+            mRecorder->abort(AVERROR_INPUT_CHANGED);
+        return 0;
     }
 
     template <typename T>
@@ -28,10 +99,15 @@ class Demuxer {
         mVideoIndex = mInput.findBestStream(AVMEDIA_TYPE_VIDEO);
         if (mVideoIndex < 0) return mVideoIndex;
 
-        auto codecName =
+        // Codecs without an elementary stream muxer of their own, e.g. VP9,
+        // are written as bare packets.
+        std::string format =
             avcodec_get_name(mInput->streams[mVideoIndex]->codecpar->codec_id);
+        if (av_guess_format(format.c_str(), nullptr, nullptr) == nullptr)
+            format = "rawvideo";
 
-        int ret = mVideoOutput.openOutput(std::forward<T>(t), codecName);
+        mVideoOutput.setFlushPackets(mStartupOptions.flushPackets);
+        int ret = mVideoOutput.openOutput(std::forward<T>(t), format);
         if (ret < 0) return ret;
 
         auto stream = mVideoOutput.newStream();
@@ -48,6 +124,7 @@ class Demuxer {
         mAudioIndex = mInput.findBestStream(AVMEDIA_TYPE_AUDIO);
         if (mAudioIndex < 0) return mAudioIndex;
 
+        mAudioOutput.setFlushPackets(mStartupOptions.flushPackets);
         int ret = mAudioOutput.openOutput(std::forward<T>(t), "adts");
         if (ret < 0) return ret;
 
@@ -60,6 +137,127 @@ class Demuxer {
         return mAudioOutput.writeHeader();
     }
 
+    void closeAudioOutput() noexcept { mAudioOutput = FormatContext(); }
+
+    // Records the streams that have an output open into url, see Recorder.
+    int startRecording(const std::string& url,
+                       const Recorder::Options& options) noexcept {
+        std::lock_guard<std::mutex> lock(mRecorderMutex);
+        if (mRecorder) return AVERROR(EBUSY);
+
+        auto video = recordedStream(mVideoIndex, mVideoOutput);
+        auto audio = recordedStream(mAudioIndex, mAudioOutput);
+        if (video == nullptr && audio == nullptr)
+            return AVERROR_STREAM_NOT_FOUND;
+
+        std::shared_ptr<Recorder> recorder(new Recorder());
+        int ret = recorder->start(url, video, audio, options);
+        if (ret < 0) return ret;
+
+        mRecorder = recorder;
+        return 0;
+    }
+
+    // Finishes the file, returns the first error of the recording.
+    int stopRecording() noexcept {
+        std::shared_ptr<Recorder> recorder;
+        {
+            std::lock_guard<std::mutex> lock(mRecorderMutex);
+            recorder.swap(mRecorder);
+        }
+        return recorder ? recorder->stop() : 0;
+    }
+
+    // False again once the input changed under the recording, see
+    // reopenInput().
+    bool isRecording() noexcept {
+        std::lock_guard<std::mutex> lock(mRecorderMutex);
+        return mRecorder != nullptr && mRecorder->isRunning();
+    }
+
+    // Packets written and dropped by the current recording.
+    void recordingStatistics(uint64_t& written, uint64_t& dropped) noexcept {
+        std::lock_guard<std::mutex> lock(mRecorderMutex);
+        written = mRecorder ? mRecorder->statistics().written.load() : 0;
+        dropped = mRecorder ? mRecorder->statistics().dropped.load() : 0;
+    }
+
+    // Duration and start of the input in milliseconds, -1 if unknown.
+    int64_t durationMs() const noexcept {
+        if (mInput.get() == nullptr || mInput->duration == AV_NOPTS_VALUE)
+            return -1;
+        return av_rescale(mInput->duration, 1000, AV_TIME_BASE);
+    }
+
+    int64_t startTimeMs() const noexcept {
+        if (mInput.get() == nullptr || mInput->start_time == AV_NOPTS_VALUE)
+            return 0;
+        return av_rescale(mInput->start_time, 1000, AV_TIME_BASE);
+    }
+
+    bool isSeekable() const noexcept {
+        return mInput.isSeekable() && durationMs() > 0;
+    }
+
+    // Continues demuxing at the video key frame at or before ms, a pts in
+    // milliseconds like videoPTS(). Key frames demuxed so far are looked up
+    // first: formats without an index of their own then seek straight to
+    // the byte position of the key frame. Audio packets before ms, or
+    // before the key frame if !accurate and it is known, are dropped.
+    // Returns the pts of that key frame, ms if it is not known yet, or an
+    // error.
+    int64_t seek(int64_t ms, bool accurate) noexcept {
+        if (mVideoIndex < 0 || !mVideoOutput.isOpened())
+            return AVERROR_STREAM_NOT_FOUND;
+        auto stream = mInput->streams[mVideoIndex];
+
+        // The newest key frame at or before ms, if a later one is known too.
+        const KeyFrame* known = nullptr;
+        auto next = std::upper_bound(
+            mKeyFrames.begin(), mKeyFrames.end(), ms,
+            [](int64_t ms, const KeyFrame& k) { return ms < k.ms; });
+        if (next != mKeyFrames.begin() && next != mKeyFrames.end())
+            known = &*(next - 1);
+
+        int64_t timestamp =
+            av_rescale_q(ms, AVRational{1, 1000}, stream->time_base);
+        int ret = -1;
+        if (known && known->pos >= 0 &&
+            !(mInput->iformat->flags & AVFMT_NO_BYTE_SEEK) &&
+            av_index_search_timestamp(stream, timestamp,
+                                      AVSEEK_FLAG_BACKWARD) < 0) {
+            ret = mInput.seek(-1, known->pos, AVSEEK_FLAG_BYTE);
+        }
+        if (ret < 0) ret = mInput.seek(mVideoIndex, timestamp, AVSEEK_FLAG_BACKWARD);
+        if (ret < 0) return ret;
+
+        mAudioStartMs = accurate ? ms : known ? known->ms : -1;
+        return known ? known->ms : ms;
+    }
+
+    // Makes a blocking open, stream probe or read of the input return
+    // AVERROR_EXIT right away, from any thread. Holds until reset().
+    void interrupt() noexcept { mInterrupted = true; }
+
+    // Closes input and outputs so the demuxer can open another stream.
+    void reset() noexcept {
+        stopRecording();
+        mKeyFrames.clear();
+        mAudioStartMs = -1;
+        mInput = FormatContext();
+        mVideoOutput = FormatContext();
+        mAudioOutput = FormatContext();
+        mVideoIndex = 0;
+        mAudioIndex = 0;
+        mVideoPTS = -1;
+        mAudioPTS = -1;
+        mVideoKeyFrame = false;
+        mTimings.openUs = -1;
+        mTimings.streamInfoUs = -1;
+        mTimings.firstVideoPacketUs = -1;
+        mInterrupted = false;
+    }
+
     FormatContext& input() noexcept { return mInput; }
 
     FormatContext& videoOutput() noexcept { return mVideoOutput; }
@@ -70,23 +268,71 @@ class Demuxer {
 
     int64_t audioPTS() const noexcept { return mAudioPTS; }
 
+    bool videoKeyFrame() const noexcept { return mVideoKeyFrame; }
+
+    const AVCodecParameters* audioParameters() noexcept {
+        if (mAudioIndex < 0 || !mAudioOutput.isOpened()) return nullptr;
+        return mInput->streams[mAudioIndex]->codecpar;
+    }
+
+    // Parameters of the video stream that will be demuxed, available right
+    // after openInput().
+    const AVCodecParameters* videoParameters() noexcept {
+        auto index = mInput.findBestStream(AVMEDIA_TYPE_VIDEO);
+        if (index < 0) return nullptr;
+        return mInput->streams[index]->codecpar;
+    }
+
+    AVCodecID videoCodecID() noexcept {
+        if (mVideoIndex < 0 || !mVideoOutput.isOpened()) return AV_CODEC_ID_NONE;
+        return mInput->streams[mVideoIndex]->codecpar->codec_id;
+    }
+
+    const PacketPool::Statistics& packetPoolStatistics() const noexcept {
+        return mPackets.statistics();
+    }
+
     int flush() {
-        Packet packet;
+        auto lease = mPackets.lease();
+        auto& packet = *lease;
         int ret = mInput.read(packet);
         if (ret < 0) return ret;
 
+        std::shared_ptr<Recorder> recorder;
+        {
+            std::lock_guard<std::mutex> lock(mRecorderMutex);
+            recorder = mRecorder;
+        }
+
         if (packet->stream_index == mVideoIndex && mVideoOutput.isOpened()) {
+            if (recorder)
+                recorder->push(packet, true,
+                               mInput->streams[mVideoIndex]->time_base);
             packet->stream_index = 0;
-            mVideoPTS = std::round(
-                packet->pts * av_q2d(mInput->streams[mVideoIndex]->time_base) *
-                1000.0);
+            if (packet->pts != AV_NOPTS_VALUE) {
+                mVideoPTS = std::round(
+                    packet->pts *
+                    av_q2d(mInput->streams[mVideoIndex]->time_base) * 1000.0);
+            }
+            mVideoKeyFrame = packet->flags & AV_PKT_FLAG_KEY;
+            if (mVideoKeyFrame && packet->pts != AV_NOPTS_VALUE)
+                addKeyFrame(mVideoPTS, packet->pos);
+            if (mTimings.firstVideoPacketUs < 0)
+                mTimings.firstVideoPacketUs = sinceOpen();
             return mVideoOutput.write(packet);
         } else if (packet->stream_index == mAudioIndex &&
                    mAudioOutput.isOpened()) {
+            if (recorder)
+                recorder->push(packet, false,
+                               mInput->streams[mAudioIndex]->time_base);
             packet->stream_index = 0;
-            mAudioPTS = std::round(
-                packet->pts * av_q2d(mInput->streams[mAudioIndex]->time_base) *
-                1000.0);
+            if (packet->pts != AV_NOPTS_VALUE) {
+                mAudioPTS = std::round(
+                    packet->pts *
+                    av_q2d(mInput->streams[mAudioIndex]->time_base) * 1000.0);
+                if (mAudioPTS < mAudioStartMs) return 0;
+                mAudioStartMs = -1;
+            }
             return mAudioOutput.write(packet);
         }
 
@@ -114,6 +360,82 @@ class Demuxer {
     int mAudioIndex = 0;
     int64_t mVideoPTS = -1;
     int64_t mAudioPTS = -1;
+    bool mVideoKeyFrame = false;
+    PacketPool mPackets{1};
+    StartupOptions mStartupOptions;
+    StartupTimings mTimings;
+    std::chrono::steady_clock::time_point mOpenTime;
+    std::shared_ptr<Recorder> mRecorder;
+    std::mutex mRecorderMutex;
+    std::atomic<bool> mInterrupted{false};
+
+    struct KeyFrame {
+        int64_t ms;
+        int64_t pos;
+    };
+
+    static constexpr size_t MAX_KEY_FRAMES = 65536;
+
+    // Video key frames demuxed so far, ordered by pts.
+    std::vector<KeyFrame> mKeyFrames;
+    int64_t mAudioStartMs = -1;
+
+    void addKeyFrame(int64_t ms, int64_t pos) {
+        if (!mKeyFrames.empty() && ms <= mKeyFrames.back().ms) {
+            // Demuxing the same part again after a seek back.
+            auto it = std::lower_bound(
+                mKeyFrames.begin(), mKeyFrames.end(), ms,
+                [](const KeyFrame& k, int64_t ms) { return k.ms < ms; });
+            if (it != mKeyFrames.end() && it->ms == ms) return;
+            if (mKeyFrames.size() < MAX_KEY_FRAMES)
+                mKeyFrames.insert(it, {ms, pos});
+            return;
+        }
+        if (mKeyFrames.size() < MAX_KEY_FRAMES) mKeyFrames.push_back({ms, pos});
+    }
+
+    const AVStream* recordedStream(int index, FormatContext& output) noexcept {
+        return index >= 0 && output.isOpened() ? mInput->streams[index]
+                                               : nullptr;
+    }
+
+    template <typename T>
+    int openInputContext(T&& t, const std::string& fmt) noexcept {
+        mInput.setInputOptions(mStartupOptions.input);
+        mInput.setInterruptFlag(&mInterrupted);
+        int ret = mInput.openInput(std::forward<T>(t), fmt);
+        if (ret < 0) return ret;
+        if (mTimings.openUs < 0) mTimings.openUs = sinceOpen();
+
+        if (!mStartupOptions.skipStreamInfo || !streamParametersKnown()) {
+            ret = mInput.findStreamInfo();
+            if (ret < 0) return ret;
+        }
+        return ret;
+    }
+
+    int64_t sinceOpen() const noexcept {
+        return std::chrono::duration_cast<std::chrono::microseconds>(
+                   std::chrono::steady_clock::now() - mOpenTime)
+            .count();
+    }
+
+    // True if the header gave codec, size and sample format of every stream.
+    bool streamParametersKnown() noexcept {
+        if (mInput->nb_streams == 0) return false;
+
+        for (unsigned i = 0; i < mInput->nb_streams; ++i) {
+            auto par = mInput->streams[i]->codecpar;
+            if (par->codec_id == AV_CODEC_ID_NONE) return false;
+            if (par->codec_type == AVMEDIA_TYPE_VIDEO &&
+                (par->width <= 0 || par->height <= 0))
+                return false;
+            if (par->codec_type == AVMEDIA_TYPE_AUDIO &&
+                (par->sample_rate <= 0 || par->channels <= 0))
+                return false;
+        }
+        return true;
+    }
 };
 
 }  // namespace ffmpeg
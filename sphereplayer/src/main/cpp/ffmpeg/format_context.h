@@ -1,6 +1,9 @@
 ﻿#ifndef FFMPEG_FORMAT_CONTEXT_H
 #define FFMPEG_FORMAT_CONTEXT_H
 
+#include <atomic>
+#include <chrono>
+
 #include "frame.h"
 #include "packet.h"
 #include "util.h"
@@ -13,13 +16,35 @@ namespace ffmpeg {
 
 class FormatContext {
    public:
+    // Tuning of the next openInput(). Zero keeps FFmpeg's default.
+    struct InputOptions {
+        // Bytes and microseconds of input avformat_find_stream_info() and
+        // format detection may look at.
+        int64_t probeSize = 0;
+        int64_t analyzeDurationUs = 0;
+
+        // AVIO buffer of callback inputs, socket receive buffer of network
+        // URLs.
+        int bufferSize = 0;
+
+        // fflags nobuffer, do not buffer packets while probing.
+        bool noBuffer = false;
+
+        // Longest a blocking openInput() or findStreamInfo(), and a single
+        // read(), may take before failing with AVERROR(ETIMEDOUT).
+        int64_t openTimeoutUs = 0;
+        int64_t readTimeoutUs = 0;
+    };
+
     FormatContext() noexcept {}
 
     FormatContext(FormatContext&&) = default;
 
     FormatContext& operator=(FormatContext&&) = default;
 
-    virtual ~FormatContext() = default;
+    // The context goes first, its demuxer may still look at a custom AVIO
+    // context while closing.
+    virtual ~FormatContext() { mFmtCtx.reset(); }
 
     AVFormatContext* operator->() noexcept { return mFmtCtx.get(); }
 
@@ -31,17 +56,36 @@ class FormatContext {
 
     bool isOpened() { return mFmtCtx != nullptr; }
 
+    void setInputOptions(const InputOptions& options) noexcept {
+        mInputOptions = options;
+    }
+
+    // Blocking I/O of the input fails with AVERROR_EXIT as soon as *flag is
+    // set, from whatever thread. flag has to outlive the context.
+    void setInterruptFlag(const std::atomic<bool>* flag) noexcept {
+        mInterruptFlag = flag;
+    }
+
+    // Flush the AVIO buffer after every packet written by the next
+    // openOutput() context instead of leaving that to the muxer.
+    void setFlushPackets(bool enable) noexcept { mFlushPackets = enable; }
+
     int openInput(std::function<int(uint8_t*, int)> readCb,
                   std::string fmt = "") noexcept {
         mCallback = readCb;
 
-        auto ctx = avformat_alloc_context();
+        auto ctx = allocInputContext();
+        auto bufSize = mInputOptions.bufferSize > 0
+                           ? (size_t)mInputOptions.bufferSize
+                           : AVIO_BUF_SIZE;
         auto ioContex = avio_alloc_context(
-            (uint8_t*)av_malloc(AVIO_BUF_SIZE), AVIO_BUF_SIZE, 0, this,
+            (uint8_t*)av_malloc(bufSize), bufSize, 0, this,
             &FormatContext::callback, nullptr, nullptr);
+        mIOContext.reset(ioContex);
         ctx->pb = ioContex;
 
         int ret = 0;
+        startDeadline(mInputOptions.openTimeoutUs);
         if (fmt.size() > 0) {
             ret = avformat_open_input(
                 &ctx, nullptr, av_find_input_format(fmt.c_str()), nullptr);
@@ -50,36 +94,59 @@ class FormatContext {
         }
         mFmtCtx.reset(ctx);
 
-        return ret;
+        return endDeadline(ret);
     }
 
     int openInput(std::string url, std::string fmt = "") noexcept {
-        auto ctx = avformat_alloc_context();
+        auto ctx = allocInputContext();
+
+        // Each protocol names its socket buffer option differently, the
+        // ones it does not know are left unused.
+        AVDictionary* options = nullptr;
+        if (mInputOptions.bufferSize > 0) {
+            av_dict_set_int(&options, "buffer_size", mInputOptions.bufferSize, 0);
+            av_dict_set_int(&options, "recv_buffer_size",
+                            mInputOptions.bufferSize, 0);
+        }
+        // Also bounds the protocol's own waits where the interrupt callback
+        // is not checked.
+        if (mInputOptions.readTimeoutUs > 0)
+            av_dict_set_int(&options, "rw_timeout", mInputOptions.readTimeoutUs,
+                            0);
 
         int ret = 0;
+        startDeadline(mInputOptions.openTimeoutUs);
         if (fmt.size() > 0)
             ret = avformat_open_input(
-                &ctx, nullptr, av_find_input_format(fmt.c_str()), nullptr);
+                &ctx, nullptr, av_find_input_format(fmt.c_str()), &options);
         else
-            ret = avformat_open_input(&ctx, url.c_str(), nullptr, nullptr);
+            ret = avformat_open_input(&ctx, url.c_str(), nullptr, &options);
+        av_dict_free(&options);
         mFmtCtx.reset(ctx);
 
-        return ret;
+        return endDeadline(ret);
     }
 
     int openOutput(std::function<int(uint8_t*, int32_t)> writeCb,
                    std::string fmt) noexcept {
         mCallback = writeCb;
 
-        auto ctx = avformat_alloc_context();
+        AVFormatContext* ctx = nullptr;
         auto ioContext = avio_alloc_context((uint8_t*)av_malloc(AVIO_BUF_SIZE),
                                             AVIO_BUF_SIZE, 1, this, nullptr,
                                             &FormatContext::callback, nullptr);
+        mIOContext.reset(ioContext);
 
         auto ret =
             avformat_alloc_output_context2(&ctx, nullptr, fmt.c_str(), nullptr);
+        if (ret < 0) return ret;
 
         ctx->pb = ioContext;
+        ctx->flags |= AVFMT_FLAG_CUSTOM_IO;
+        if (mFlushPackets) {
+            ctx->flags |= AVFMT_FLAG_FLUSH_PACKETS;
+            ctx->flush_packets = 1;
+        }
 
         mFmtCtx.reset(ctx);
 
@@ -87,7 +154,7 @@ class FormatContext {
     }
 
     int openOutput(std::string url, std::string fmt = "") noexcept {
-        auto ctx = avformat_alloc_context();
+        AVFormatContext* ctx = nullptr;
 
         int ret = 0;
         if (fmt.size() > 0) {
@@ -118,19 +185,34 @@ class FormatContext {
     }
 
     int findStreamInfo(AVDictionary** options = nullptr) noexcept {
-        return avformat_find_stream_info(mFmtCtx.get(), options);
+        startDeadline(mInputOptions.openTimeoutUs);
+        return endDeadline(avformat_find_stream_info(mFmtCtx.get(), options));
     }
 
     void dumpFormat(const char* url, bool isOutput) noexcept {
         av_dump_format(mFmtCtx.get(), 0, url, isOutput);
     }
 
+    // See av_seek_frame(), timestamp is in the time base of the stream or
+    // AV_TIME_BASE for -1.
+    int seek(int streamIndex, int64_t timestamp, int flags = 0) noexcept {
+        return av_seek_frame(mFmtCtx.get(), streamIndex, timestamp, flags);
+    }
+
+    // True if the input can seek at all.
+    bool isSeekable() const noexcept {
+        return mFmtCtx && mFmtCtx->pb &&
+               (mFmtCtx->pb->seekable & AVIO_SEEKABLE_NORMAL);
+    }
+
     int readFrame(AVPacket* packet) noexcept {
-        return av_read_frame(mFmtCtx.get(), packet);
+        startDeadline(mInputOptions.readTimeoutUs);
+        return endDeadline(av_read_frame(mFmtCtx.get(), packet));
     }
 
     int read(Packet& packet) noexcept {
-        return av_read_frame(mFmtCtx.get(), packet.get());
+        startDeadline(mInputOptions.readTimeoutUs);
+        return endDeadline(av_read_frame(mFmtCtx.get(), packet.get()));
     }
 
     int writeFrame(AVPacket* packet) noexcept {
@@ -150,15 +232,83 @@ class FormatContext {
    protected:
     static constexpr size_t AVIO_BUF_SIZE = 4 * 1024 * 1024;
 
+    // Closes the AVIO context FFmpeg opened for a URL, custom ones are owned
+    // by mIOContext.
     struct Deletor {
         void operator()(AVFormatContext* p) {
-            if (p) {
-                avformat_free_context(p);
+            if (p == nullptr) return;
+
+            if (p->iformat) {
+                avformat_close_input(&p);
+                return;
             }
+            if (p->oformat && !(p->oformat->flags & AVFMT_NOFILE) &&
+                !(p->flags & AVFMT_FLAG_CUSTOM_IO))
+                avio_closep(&p->pb);
+            avformat_free_context(p);
+        }
+    };
+
+    struct IODeletor {
+        void operator()(AVIOContext* p) {
+            if (p == nullptr) return;
+            av_freep(&p->buffer);
+            avio_context_free(&p);
         }
     };
+
     std::unique_ptr<AVFormatContext, Deletor> mFmtCtx{nullptr, Deletor()};
+    std::unique_ptr<AVIOContext, IODeletor> mIOContext{nullptr, IODeletor()};
     std::function<int(uint8_t*, int)> mCallback;
+    InputOptions mInputOptions;
+    bool mFlushPackets = false;
+    const std::atomic<bool>* mInterruptFlag = nullptr;
+    // steady_clock microseconds the running call has to finish by, 0 for
+    // none. The interrupt callback runs on the calling thread.
+    int64_t mDeadlineUs = 0;
+    bool mTimedOut = false;
+
+    static int64_t nowUs() noexcept {
+        return std::chrono::duration_cast<std::chrono::microseconds>(
+                   std::chrono::steady_clock::now().time_since_epoch())
+            .count();
+    }
+
+    void startDeadline(int64_t timeoutUs) noexcept {
+        mTimedOut = false;
+        mDeadlineUs = timeoutUs > 0 ? nowUs() + timeoutUs : 0;
+    }
+
+    int endDeadline(int ret) noexcept {
+        mDeadlineUs = 0;
+        if (ret == AVERROR_EXIT && mTimedOut) return AVERROR(ETIMEDOUT);
+        return ret;
+    }
+
+    static int interruptCallback(void* opaque) noexcept {
+        auto p = static_cast<FormatContext*>(opaque);
+        if (p->mInterruptFlag && p->mInterruptFlag->load()) return 1;
+
+        if (p->mDeadlineUs > 0 && nowUs() > p->mDeadlineUs) {
+            p->mTimedOut = true;
+            return 1;
+        }
+        return 0;
+    }
+
+    AVFormatContext* allocInputContext() noexcept {
+        auto ctx = avformat_alloc_context();
+        if (ctx == nullptr) return nullptr;
+
+        ctx->interrupt_callback.callback = &FormatContext::interruptCallback;
+        ctx->interrupt_callback.opaque = this;
+
+        if (mInputOptions.probeSize > 0) ctx->probesize = mInputOptions.probeSize;
+        if (mInputOptions.analyzeDurationUs > 0)
+            ctx->max_analyze_duration = mInputOptions.analyzeDurationUs;
+        if (mInputOptions.noBuffer) ctx->flags |= AVFMT_FLAG_NOBUFFER;
+        return ctx;
+    }
 
     static int callback(void* opaque, uint8_t* buf, int32_t size) noexcept {
         auto p = static_cast<FormatContext*>(opaque);
@@ -40,6 +40,8 @@ class Frame {
 
     const AVFrame* operator->() const noexcept { return mFrame.get(); }
 
+    void unref() noexcept { av_frame_unref(mFrame.get()); }
+
    private:
     struct Deletor {
         void operator()(AVFrame* p) {
@@ -1,6 +1,9 @@
 ﻿#ifndef FFMPEG_MUXER_H
 #define FFMPEG_MUXER_H
 
+#include <algorithm>
+#include <cstdlib>
+
 #include "format_context.h"
 #include "packet.h"
 
@@ -54,6 +57,49 @@ class Muxer {
 
     FormatContext &output() noexcept { return mOutput; }
 
+    // Remuxes packets demuxed elsewhere into url without decoding them. The
+    // output streams are copies of video and audio, either may be null.
+    int openRemuxOutput(std::string url, const AVStream *video,
+                        const AVStream *audio, std::string fmt = "",
+                        AVDictionary **options = nullptr) noexcept {
+        int ret = mOutput.openOutput(url, fmt);
+        if (ret < 0) return ret;
+
+        // Last dts written, the first one is 0.
+        mVideoPTS = -1;
+        mAudioPTS = -1;
+        mStartTime = AV_NOPTS_VALUE;
+        mLastTime = -1;
+        if (video) {
+            ret = addRemuxStream(video, mOutputVideoStream);
+            if (ret < 0) return ret;
+            mVideoTimeBase = video->time_base;
+        }
+        if (audio) {
+            ret = addRemuxStream(audio, mOutputAudioStream);
+            if (ret < 0) return ret;
+            mAudioTimeBase = audio->time_base;
+        }
+
+        return mOutput.writeHeader(options);
+    }
+
+    // Writes a packet of the video or audio stream given to
+    // openRemuxOutput(), with timestamps in the time base of that stream.
+    // Timestamps are shifted so the file starts at zero, packets from before
+    // the start are dropped. Where the input timestamps jump, e.g. after a
+    // seek or a reconnect, the shift is adjusted so the output continues
+    // right after the last packet written.
+    int writeVideo(Packet &packet) noexcept {
+        return writeRemux(packet, mVideoTimeBase, mOutputVideoStream,
+                          mVideoPTS);
+    }
+
+    int writeAudio(Packet &packet) noexcept {
+        return writeRemux(packet, mAudioTimeBase, mOutputAudioStream,
+                          mAudioPTS);
+    }
+
     int flushVideo() noexcept {
         Packet packet;
         int ret = mVideoInput.read(packet);
@@ -120,6 +166,71 @@ class Muxer {
     AVStream *mOutputAudioStream = nullptr;
     int64_t mVideoPTS = 0;
     int64_t mAudioPTS = 0;
+    AVRational mVideoTimeBase{0, 1};
+    AVRational mAudioTimeBase{0, 1};
+    // Input time in AV_TIME_BASE written as 0, and the newest dts written
+    // to any stream in the same unit.
+    int64_t mStartTime = AV_NOPTS_VALUE;
+    int64_t mLastTime = -1;
+
+    // Larger steps between the dts of successive packets, in either
+    // direction, are taken for discontinuities of the input.
+    static constexpr int64_t MAX_DTS_STEP = 10 * AV_TIME_BASE;
+
+    int addRemuxStream(const AVStream *input, AVStream *&output) noexcept {
+        output = mOutput.newStream();
+        if (output == nullptr) return AVERROR(ENOMEM);
+
+        int ret = avcodec_parameters_copy(output->codecpar, input->codecpar);
+        if (ret < 0) return ret;
+        // The tag of the input container may not be valid in the output.
+        output->codecpar->codec_tag = 0;
+        output->time_base = input->time_base;
+        return 0;
+    }
+
+    int writeRemux(Packet &packet, AVRational timeBase, AVStream *output,
+                   int64_t &lastDTS) noexcept {
+        if (output == nullptr) return 0;
+        if (packet->dts == AV_NOPTS_VALUE) packet->dts = packet->pts;
+        if (packet->dts == AV_NOPTS_VALUE) return 0;
+
+        int64_t time = av_rescale_q(packet->dts, timeBase, AV_TIME_BASE_Q);
+        if (mStartTime == AV_NOPTS_VALUE) mStartTime = time;
+
+        int64_t last = lastDTS >= 0 ? av_rescale_q(lastDTS, output->time_base,
+                                                   AV_TIME_BASE_Q)
+                                    : mLastTime;
+        if (last >= 0 && std::abs(time - mStartTime - last) > MAX_DTS_STEP) {
+            int64_t step =
+                packet->duration > 0
+                    ? av_rescale_q(packet->duration, timeBase, AV_TIME_BASE_Q)
+                    : 1000;
+            mStartTime = time - mLastTime - step;
+        }
+
+        int64_t offset = av_rescale_q(mStartTime, AV_TIME_BASE_Q, timeBase);
+        if (packet->pts != AV_NOPTS_VALUE) packet->pts -= offset;
+        packet->dts -= offset;
+
+        av_packet_rescale_ts(packet.get(), timeBase, output->time_base);
+        // Only packets from before the start of the file go. Smaller steps
+        // back, which muxers reject, are moved after the last packet.
+        if (packet->dts < 0) return 0;
+        if (packet->dts <= lastDTS) {
+            int64_t shift = lastDTS + 1 - packet->dts;
+            packet->dts += shift;
+            if (packet->pts != AV_NOPTS_VALUE) packet->pts += shift;
+        }
+        lastDTS = packet->dts;
+        mLastTime = std::max(
+            mLastTime,
+            av_rescale_q(packet->dts, output->time_base, AV_TIME_BASE_Q));
+
+        packet->stream_index = output->index;
+        packet->pos = -1;
+        return mOutput.write(packet);
+    }
 
     int addOutputStreams() noexcept {
         if (mVideoInput.isOpened() && mVideoInput->nb_streams > 0) {
@@ -0,0 +1,92 @@
+#ifndef FFMPEG_OBJECT_POOL_H
+#define FFMPEG_OBJECT_POOL_H
+
+#include <atomic>
+#include <cstdint>
+#include <mutex>
+#include <vector>
+
+#include "frame.h"
+#include "packet.h"
+
+namespace ffmpeg {
+
+// Bounded free list of Frame or Packet wrappers. Released objects are
+// unreferenced and handed out again instead of allocating new ones, objects
+// beyond the capacity are freed. Safe to use from several threads.
+template <typename T>
+class ObjectPool {
+   public:
+    struct Statistics {
+        std::atomic<uint64_t> hits{0};
+        std::atomic<uint64_t> misses{0};
+    };
+
+    // Returns the object to its pool when it goes out of scope.
+    class Lease {
+       public:
+        Lease(ObjectPool* pool, T&& object) noexcept
+            : mPool(pool), mObject(std::move(object)) {}
+
+        Lease(Lease&& other) noexcept
+            : mPool(other.mPool), mObject(std::move(other.mObject)) {
+            other.mPool = nullptr;
+        }
+
+        Lease(const Lease&) = delete;
+        Lease& operator=(const Lease&) = delete;
+
+        ~Lease() {
+            if (mPool) mPool->release(std::move(mObject));
+        }
+
+        T& operator*() noexcept { return mObject; }
+
+        T* operator->() noexcept { return &mObject; }
+
+       private:
+        ObjectPool* mPool;
+        T mObject;
+    };
+
+    explicit ObjectPool(size_t capacity) noexcept : mCapacity(capacity) {}
+
+    T acquire() {
+        {
+            std::lock_guard<std::mutex> lock(mMutex);
+            if (!mFree.empty()) {
+                T object = std::move(mFree.back());
+                mFree.pop_back();
+                ++mStatistics.hits;
+                return object;
+            }
+        }
+        ++mStatistics.misses;
+        return T();
+    }
+
+    Lease lease() { return Lease(this, acquire()); }
+
+    void release(T&& object) {
+        if (object.get() == nullptr) return;
+        object.unref();
+
+        std::lock_guard<std::mutex> lock(mMutex);
+        if (mFree.size() < mCapacity) mFree.push_back(std::move(object));
+    }
+
+    const Statistics& statistics() const noexcept { return mStatistics; }
+
+   private:
+    const size_t mCapacity;
+    std::vector<T> mFree;
+    std::mutex mMutex;
+    Statistics mStatistics;
+};
+
+using FramePool = ObjectPool<Frame>;
+using PacketPool = ObjectPool<Packet>;
+
+}  // namespace ffmpeg
+
+#endif  // FFMPEG_OBJECT_POOL_H
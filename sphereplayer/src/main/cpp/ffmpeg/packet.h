@@ -27,6 +27,8 @@ class Packet {
 
     const AVPacket* operator->() const noexcept { return mPacket.get(); }
 
+    void unref() noexcept { av_packet_unref(mPacket.get()); }
+
    private:
     struct Deletor {
         void operator()(AVPacket* p) {
@@ -0,0 +1,355 @@
+#ifndef FFMPEG_PACKET_RING_H
+#define FFMPEG_PACKET_RING_H
+
+#include <chrono>
+#include <condition_variable>
+#include <cstring>
+#include <mutex>
+
+#include "util.h"
+
+extern "C" {
+#include "libavcodec/avcodec.h"
+}
+
+namespace ffmpeg {
+
+// True if an Annex-B packet carries a picture that later pictures may
+// reference. Unknown codecs are always treated as reference.
+inline bool isReferencePacket(const uint8_t* data, int size,
+                              AVCodecID codec) noexcept {
+    if (codec != AV_CODEC_ID_H264 && codec != AV_CODEC_ID_HEVC) return true;
+
+    bool hasPicture = false;
+    for (int i = 0; i + 3 < size; ++i) {
+        if (data[i] != 0 || data[i + 1] != 0 || data[i + 2] != 1) continue;
+        i += 3;
+
+        uint8_t header = data[i];
+        if (codec == AV_CODEC_ID_H264) {
+            int type = header & 0x1f;
+            if (type < 1 || type > 5) continue;
+            if ((header >> 5) & 0x03) return true;
+        } else {
+            int type = (header >> 1) & 0x3f;
+            if (type > 31) continue;
+            if (type > 14 || type % 2 == 1) return true;
+        }
+        hasPicture = true;
+    }
+    return !hasPicture;
+}
+
+// Single-producer single-consumer packet ring. The demux thread pushes and
+// the codec feeder pops; neither takes a lock unless it has to sleep.
+// Slot storage only grows, so steady state does not touch the heap.
+class PacketRing {
+   public:
+    enum Policy {
+        // The producer waits for free space, pushing back on the source.
+        BLOCK = 0,
+        // The consumer skips queued packets up to the newest keyframe.
+        DROP_OLDEST_UNTIL_KEY_FRAME = 1,
+        // Incoming non-reference pictures are dropped while full.
+        DROP_NON_REFERENCE = 2,
+    };
+
+    struct Statistics {
+        std::atomic<int64_t> pushed{0};
+        std::atomic<int64_t> popped{0};
+        std::atomic<int64_t> droppedOldest{0};
+        std::atomic<int64_t> droppedNonReference{0};
+        std::atomic<int64_t> droppedUntilKeyFrame{0};
+        std::atomic<int64_t> blockedUs{0};
+        std::atomic<int64_t> droppedOversized{0};
+    };
+
+    explicit PacketRing(size_t capacity) noexcept : mSlots(capacity) {}
+
+    void setPolicy(Policy policy) noexcept { mPolicy = policy; }
+
+    void setCodec(AVCodecID codec) noexcept { mCodec = codec; }
+
+    const Statistics& statistics() const noexcept { return mStatistics; }
+
+    size_t size() const noexcept {
+        return mHead.load(std::memory_order_acquire) -
+               mTail.load(std::memory_order_acquire);
+    }
+
+    bool push(const uint8_t* data, int size, int64_t pts,
+              bool keyFrame) noexcept {
+        if (mProducerAwaitKey) {
+            if (!keyFrame) {
+                increase(mStatistics.droppedUntilKeyFrame);
+                return false;
+            }
+            mProducerAwaitKey = false;
+        }
+
+        if (isFull() && !waitForSpace(data, size)) return false;
+
+        auto head = mHead.load(std::memory_order_relaxed);
+        auto& slot = mSlots[head % mSlots.size()];
+        slot.data.assign(data, data + size);
+        slot.pts = pts;
+        slot.keyFrame = keyFrame;
+        mHead.store(head + 1, std::memory_order_seq_cst);
+        increase(mStatistics.pushed);
+
+        mConsumerEvent.notify();
+        return true;
+    }
+
+    // Copies the oldest packet into dst. Returns its size, 0 on timeout.
+    // A packet larger than capacity is dropped along with everything up to
+    // the next keyframe, and 0 returned.
+    int pop(uint8_t* dst, int capacity, int64_t& pts,
+            int timeoutMs) noexcept {
+        return pop(
+            [dst, capacity](Slot& slot) {
+                int size = (int)slot.data.size();
+                if (size > capacity) return -1;
+                memcpy(dst, slot.data.data(), size);
+                return size;
+            },
+            pts, timeoutMs);
+    }
+
+    // Moves the oldest packet into dst without copying; the previous
+    // storage of dst is handed back to the ring for reuse.
+    int pop(std::vector<uint8_t>& dst, int64_t& pts, int timeoutMs) noexcept {
+        return pop(
+            [&dst](Slot& slot) {
+                dst.swap(slot.data);
+                return (int)dst.size();
+            },
+            pts, timeoutMs);
+    }
+
+    // Called by the consumer. Discards queued packets up to the newest
+    // keyframe, or all of them and the following ones up to the next
+    // keyframe if none is queued. Returns the pts playback continues from,
+    // -1 if that is not known yet.
+    int64_t skipToNewestKeyFrame() noexcept {
+        auto tail = mTail.load(std::memory_order_relaxed);
+        auto head = mHead.load(std::memory_order_acquire);
+
+        auto target = head;
+        for (auto i = head; i != tail; --i) {
+            if (mSlots[(i - 1) % mSlots.size()].keyFrame) {
+                target = i - 1;
+                break;
+            }
+        }
+        if (target == head) mConsumerAwaitKey = true;
+
+        increase(mStatistics.droppedOldest, (int64_t)(target - tail));
+        mTail.store(target, std::memory_order_seq_cst);
+        mProducerEvent.notify();
+
+        return target == head ? -1 : mSlots[target % mSlots.size()].pts;
+    }
+
+    // Called before the producer switches to another position of the
+    // stream. The consumer drops every packet queued so far and continues at
+    // the next keyframe. A push() waiting on the full ring gives up, so the
+    // producer can be stopped even while nothing is consumed.
+    void discard() noexcept {
+        mDiscardTo.store(mHead.load(std::memory_order_acquire) + 1,
+                         std::memory_order_release);
+        mConsumerEvent.notify();
+        mProducerEvent.notify();
+    }
+
+    // Wakes both sides up for good; push() fails from now on.
+    void close() noexcept {
+        mClosed.store(true, std::memory_order_seq_cst);
+        mProducerEvent.notify();
+        mConsumerEvent.notify();
+    }
+
+    bool isClosed() const noexcept {
+        return mClosed.load(std::memory_order_acquire);
+    }
+
+    // Empties and reopens the ring for another session. The slots keep their
+    // buffers. Neither side may use the ring meanwhile.
+    void reset() noexcept {
+        mHead = 0;
+        mTail = 0;
+        mSkipRequested = false;
+        mDiscardTo = 0;
+        mClosed = false;
+        mProducerAwaitKey = false;
+        mConsumerAwaitKey = false;
+        mCodec = AV_CODEC_ID_NONE;
+        mStatistics.pushed = 0;
+        mStatistics.popped = 0;
+        mStatistics.droppedOldest = 0;
+        mStatistics.droppedNonReference = 0;
+        mStatistics.droppedUntilKeyFrame = 0;
+        mStatistics.blockedUs = 0;
+        mStatistics.droppedOversized = 0;
+    }
+
+   private:
+    // Lets one side sleep until the other one changed the ring. Notifying is
+    // a single atomic load while nobody is waiting.
+    class Event {
+       public:
+        template <typename Pred>
+        bool wait(Pred pred, int timeoutMs) noexcept {
+            if (pred()) return true;
+
+            mWaiters.fetch_add(1, std::memory_order_seq_cst);
+            std::unique_lock<std::mutex> lock(mMutex);
+            bool ret = mCond.wait_for(
+                lock, std::chrono::milliseconds(timeoutMs), pred);
+            mWaiters.fetch_sub(1, std::memory_order_relaxed);
+            return ret;
+        }
+
+        void notify() noexcept {
+            if (mWaiters.load(std::memory_order_seq_cst) == 0) return;
+            std::lock_guard<std::mutex> lock(mMutex);
+            mCond.notify_all();
+        }
+
+       private:
+        std::atomic<int> mWaiters{0};
+        std::mutex mMutex;
+        std::condition_variable mCond;
+    };
+
+    struct Slot {
+        std::vector<uint8_t> data;
+        int64_t pts = 0;
+        bool keyFrame = false;
+    };
+
+    static constexpr int DROP_WAIT_MS = 100;
+
+    std::vector<Slot> mSlots;
+    std::atomic<size_t> mHead{0};
+    std::atomic<size_t> mTail{0};
+    std::atomic<bool> mSkipRequested{false};
+    // Head at the last discard() plus one, 0 if none is pending.
+    std::atomic<size_t> mDiscardTo{0};
+    std::atomic<bool> mClosed{false};
+    bool mProducerAwaitKey = false;
+    bool mConsumerAwaitKey = false;
+    Policy mPolicy = DROP_OLDEST_UNTIL_KEY_FRAME;
+    AVCodecID mCodec = AV_CODEC_ID_NONE;
+    Event mProducerEvent;
+    Event mConsumerEvent;
+    Statistics mStatistics;
+
+    template <typename Take>
+    int pop(Take take, int64_t& pts, int timeoutMs) noexcept {
+        if (!mConsumerEvent.wait(
+                [this] { return !isEmpty() || isClosed(); }, timeoutMs))
+            return 0;
+
+        if (mSkipRequested.exchange(false)) skipToNewestKeyFrame();
+        if (auto discardTo = mDiscardTo.exchange(0)) {
+            auto tail = mTail.load(std::memory_order_relaxed);
+            if (discardTo - 1 > tail) {
+                increase(mStatistics.droppedOldest,
+                         (int64_t)(discardTo - 1 - tail));
+                mTail.store(discardTo - 1, std::memory_order_seq_cst);
+            }
+            mConsumerAwaitKey = true;
+        }
+
+        auto tail = mTail.load(std::memory_order_relaxed);
+        auto head = mHead.load(std::memory_order_acquire);
+        while (mConsumerAwaitKey && tail != head) {
+            if (mSlots[tail % mSlots.size()].keyFrame) {
+                mConsumerAwaitKey = false;
+            } else {
+                ++tail;
+                increase(mStatistics.droppedOldest);
+            }
+        }
+        mTail.store(tail, std::memory_order_seq_cst);
+        if (tail == head) {
+            mProducerEvent.notify();
+            return 0;
+        }
+
+        auto& slot = mSlots[tail % mSlots.size()];
+        pts = slot.pts;
+        int ret = take(slot);
+        mTail.store(tail + 1, std::memory_order_seq_cst);
+        if (ret < 0) {
+            // Did not fit, the pictures referencing it are undecodable.
+            increase(mStatistics.droppedOversized);
+            mConsumerAwaitKey = true;
+            ret = 0;
+        } else {
+            increase(mStatistics.popped);
+        }
+
+        mProducerEvent.notify();
+        return ret;
+    }
+
+    static void increase(std::atomic<int64_t>& counter,
+                         int64_t value = 1) noexcept {
+        counter.fetch_add(value, std::memory_order_relaxed);
+    }
+
+    bool isEmpty() const noexcept {
+        return mHead.load(std::memory_order_seq_cst) ==
+               mTail.load(std::memory_order_seq_cst);
+    }
+
+    bool isFull() const noexcept {
+        return mHead.load(std::memory_order_seq_cst) -
+                   mTail.load(std::memory_order_seq_cst) >=
+               mSlots.size();
+    }
+
+    // Called by the producer on a full ring. Returns false if the packet
+    // has to be dropped.
+    bool waitForSpace(const uint8_t* data, int size) noexcept {
+        if (mPolicy == DROP_NON_REFERENCE &&
+            !isReferencePacket(data, size, mCodec)) {
+            increase(mStatistics.droppedNonReference);
+            return false;
+        }
+        if (mPolicy == DROP_OLDEST_UNTIL_KEY_FRAME) {
+            mSkipRequested.store(true, std::memory_order_release);
+            mConsumerEvent.notify();
+        }
+
+        auto start = std::chrono::steady_clock::now();
+        auto ready = [this] {
+            return !isFull() || isClosed() ||
+                   mDiscardTo.load(std::memory_order_acquire) != 0;
+        };
+        bool ret = mProducerEvent.wait(ready, DROP_WAIT_MS);
+        while (!ret && mPolicy == BLOCK) {
+            ret = mProducerEvent.wait(ready, DROP_WAIT_MS);
+        }
+        increase(mStatistics.blockedUs,
+                 std::chrono::duration_cast<std::chrono::microseconds>(
+                     std::chrono::steady_clock::now() - start)
+                     .count());
+
+        if (isClosed()) return false;
+        if (!isFull()) return true;
+
+        // The consumer did not make room in time, or the queued packets are
+        // about to be discarded. Everything up to the next keyframe would be
+        // undecodable, so drop it right here.
+        mProducerAwaitKey = true;
+        increase(mStatistics.droppedUntilKeyFrame);
+        return false;
+    }
+};
+
+}  // namespace ffmpeg
+
+#endif  // FFMPEG_PACKET_RING_H
@@ -0,0 +1,238 @@
+#ifndef FFMPEG_RECORDER_H
+#define FFMPEG_RECORDER_H
+
+#include <atomic>
+#include <condition_variable>
+#include <cstring>
+#include <deque>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <thread>
+
+#include "muxer.h"
+#include "object_pool.h"
+
+namespace ffmpeg {
+
+// Writes a copy of the demuxed packets to a file on a thread of its own.
+// push() never blocks: packets that do not fit into the queue are dropped,
+// and video is dropped up to the next key frame so the file stays decodable.
+class Recorder {
+   public:
+    struct Options {
+        // Fragmented MP4, playable up to the last fragment if the recording
+        // is never stopped properly.
+        bool fragmented = false;
+
+        // Packets waiting to be written.
+        size_t queueSize = 512;
+    };
+
+    struct Statistics {
+        std::atomic<uint64_t> written{0};
+        std::atomic<uint64_t> dropped{0};
+    };
+
+    Recorder() noexcept {}
+
+    Recorder(const Recorder&) = delete;
+    Recorder& operator=(const Recorder&) = delete;
+
+    ~Recorder() { stop(); }
+
+    // Creates url and writes its header. video and audio are the input
+    // streams of the packets that will be pushed, either may be null.
+    int start(const std::string& url, const AVStream* video,
+              const AVStream* audio, const Options& options) noexcept {
+        if (mThread.joinable()) return AVERROR(EBUSY);
+
+        AVDictionary* dict = nullptr;
+        if (options.fragmented)
+            av_dict_set(&dict, "movflags",
+                        "frag_keyframe+empty_moov+default_base_moof", 0);
+
+        // Unknown extensions still get an MP4.
+        std::string fmt =
+            av_guess_format(nullptr, url.c_str(), nullptr) ? "" : "mp4";
+        int ret = mMuxer.openRemuxOutput(url, video, audio, fmt, &dict);
+        av_dict_free(&dict);
+        if (ret < 0) return ret;
+
+        mVideoParameters = copyParameters(video);
+        mAudioParameters = copyParameters(audio);
+        mVideoTimeBase = video ? video->time_base : AVRational{0, 1};
+        mAudioTimeBase = audio ? audio->time_base : AVRational{0, 1};
+        mQueueSize = options.queueSize;
+        mAwaitKeyFrame = video != nullptr;
+        mStarted = video == nullptr;
+        mClosed = false;
+        mError = 0;
+        mAbortError = 0;
+        mThread = std::thread(&Recorder::run, this);
+        return 0;
+    }
+
+    // True if the streams of another input can continue this recording, e.g.
+    // after a reconnect. Either may be null if it is not recorded.
+    bool matches(const AVStream* video, const AVStream* audio) const noexcept {
+        return matches(mVideoParameters.get(), video) &&
+               matches(mAudioParameters.get(), audio);
+    }
+
+    // Queues a reference to packet, a packet of the video stream if video.
+    // timeBase is that of the packet's stream, which may have changed since
+    // start() with the input.
+    void push(const Packet& packet, bool video, AVRational timeBase) {
+        bool key = packet->flags & AV_PKT_FLAG_KEY;
+        {
+            std::lock_guard<std::mutex> lock(mMutex);
+            if (mClosed) return;
+
+            if (video && mAwaitKeyFrame) {
+                if (!key) return;
+                mAwaitKeyFrame = false;
+                mStarted = true;
+            }
+            // Audio before the first video key frame would be dropped by the
+            // muxer anyway.
+            if (!video && !mStarted) return;
+
+            if (mQueue.size() >= mQueueSize) {
+                ++mStatistics.dropped;
+                if (video) mAwaitKeyFrame = true;
+                return;
+            }
+        }
+
+        auto copy = mPackets.acquire();
+        if (av_packet_ref(copy.get(), packet.get()) < 0) return;
+        av_packet_rescale_ts(copy.get(), timeBase,
+                             video ? mVideoTimeBase : mAudioTimeBase);
+
+        std::lock_guard<std::mutex> lock(mMutex);
+        mQueue.push_back({std::move(copy), video});
+        mCondition.notify_one();
+    }
+
+    // Writes the queued packets and the trailer. Returns the first error of
+    // the recording, or 0 if the file is complete.
+    int stop() noexcept {
+        {
+            std::lock_guard<std::mutex> lock(mMutex);
+            mClosed = true;
+            mCondition.notify_one();
+        }
+        if (mThread.joinable()) mThread.join();
+        return mError;
+    }
+
+    // Finishes the file with the packets queued so far and makes stop()
+    // return error, e.g. when the input changed in a way the file cannot
+    // follow.
+    void abort(int error) noexcept {
+        std::lock_guard<std::mutex> lock(mMutex);
+        if (mClosed) return;
+        mAbortError = error;
+        mClosed = true;
+        mCondition.notify_one();
+    }
+
+    // False once stopped or aborted.
+    bool isRunning() noexcept {
+        std::lock_guard<std::mutex> lock(mMutex);
+        return !mClosed;
+    }
+
+    const Statistics& statistics() const noexcept { return mStatistics; }
+
+   private:
+    struct Entry {
+        Packet packet;
+        bool video;
+    };
+
+    struct ParametersDeletor {
+        void operator()(AVCodecParameters* p) { avcodec_parameters_free(&p); }
+    };
+
+    using Parameters = std::unique_ptr<AVCodecParameters, ParametersDeletor>;
+
+    static Parameters copyParameters(const AVStream* stream) noexcept {
+        if (stream == nullptr) return nullptr;
+        Parameters parameters(avcodec_parameters_alloc());
+        if (parameters &&
+            avcodec_parameters_copy(parameters.get(), stream->codecpar) < 0)
+            parameters.reset();
+        return parameters;
+    }
+
+    static bool matches(const AVCodecParameters* recorded,
+                        const AVStream* stream) noexcept {
+        if (recorded == nullptr) return true;
+        if (stream == nullptr) return false;
+
+        auto p = stream->codecpar;
+        if (p->codec_id != recorded->codec_id) return false;
+        if (p->codec_type == AVMEDIA_TYPE_AUDIO)
+            return p->sample_rate == recorded->sample_rate &&
+                   p->channels == recorded->channels;
+        // The parameter sets went into the header of the file.
+        return p->width == recorded->width && p->height == recorded->height &&
+               p->extradata_size == recorded->extradata_size &&
+               (p->extradata_size == 0 ||
+                memcmp(p->extradata, recorded->extradata,
+                       p->extradata_size) == 0);
+    }
+
+    Muxer mMuxer;
+    Parameters mVideoParameters;
+    Parameters mAudioParameters;
+    AVRational mVideoTimeBase{0, 1};
+    AVRational mAudioTimeBase{0, 1};
+    PacketPool mPackets{64};
+    std::deque<Entry> mQueue;
+    size_t mQueueSize = 0;
+    bool mAwaitKeyFrame = false;
+    bool mStarted = false;
+    bool mClosed = true;
+    std::mutex mMutex;
+    std::condition_variable mCondition;
+    std::thread mThread;
+    int mError = 0;
+    int mAbortError = 0;
+    Statistics mStatistics;
+
+    void run() {
+        std::unique_lock<std::mutex> lock(mMutex);
+        while (true) {
+            mCondition.wait(lock,
+                            [this] { return mClosed || !mQueue.empty(); });
+            if (mQueue.empty()) break;
+            Entry entry = std::move(mQueue.front());
+            mQueue.pop_front();
+            lock.unlock();
+
+            // After an error the rest is only drained.
+            if (mError == 0) {
+                int ret = entry.video ? mMuxer.writeVideo(entry.packet)
+                                      : mMuxer.writeAudio(entry.packet);
+                if (ret < 0)
+                    mError = ret;
+                else
+                    ++mStatistics.written;
+            }
+            mPackets.release(std::move(entry.packet));
+            lock.lock();
+        }
+        if (mError == 0) mError = mAbortError;
+        lock.unlock();
+
+        int ret = mMuxer.close();
+        if (mError == 0 && ret < 0) mError = ret;
+    }
+};
+
+}  // namespace ffmpeg
+
+#endif  // FFMPEG_RECORDER_H
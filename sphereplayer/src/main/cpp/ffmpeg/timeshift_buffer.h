@@ -0,0 +1,212 @@
+#ifndef FFMPEG_TIMESHIFT_BUFFER_H
+#define FFMPEG_TIMESHIFT_BUFFER_H
+
+#include <algorithm>
+#include <cerrno>
+#include <chrono>
+#include <condition_variable>
+#include <cstdint>
+#include <cstring>
+#include <deque>
+#include <mutex>
+#include <string>
+#include <vector>
+
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <unistd.h>
+
+extern "C" {
+#include "libavutil/error.h"
+}
+
+namespace ffmpeg {
+
+// The last capacity bytes of packets in a memory-mapped file used as a ring.
+// One thread appends, one reader plays them back from any key frame that is
+// still in the file. The file is unlinked right after it is mapped, so it
+// never outlives the buffer.
+class TimeShiftBuffer {
+   public:
+    enum Stream : uint8_t { VIDEO = 0, AUDIO = 1 };
+
+    struct Record {
+        Stream stream;
+        bool keyFrame;
+        int64_t pts;
+    };
+
+    TimeShiftBuffer() noexcept {}
+
+    TimeShiftBuffer(const TimeShiftBuffer&) = delete;
+    TimeShiftBuffer& operator=(const TimeShiftBuffer&) = delete;
+
+    ~TimeShiftBuffer() {
+        if (mData) munmap(mData, mCapacity);
+    }
+
+    int open(const std::string& path, size_t capacity) noexcept {
+        if (mData) return AVERROR(EBUSY);
+
+        int fd = ::open(path.c_str(), O_RDWR | O_CREAT | O_TRUNC, 0600);
+        if (fd < 0) return AVERROR(errno);
+
+        int ret = 0;
+        void* data = MAP_FAILED;
+        if (ftruncate(fd, (off_t)capacity) < 0) {
+            ret = AVERROR(errno);
+        } else {
+            data = mmap(nullptr, capacity, PROT_READ | PROT_WRITE, MAP_SHARED,
+                        fd, 0);
+            if (data == MAP_FAILED) ret = AVERROR(errno);
+        }
+        ::close(fd);
+        unlink(path.c_str());
+        if (ret < 0) return ret;
+
+        mData = (uint8_t*)data;
+        mCapacity = capacity;
+        return 0;
+    }
+
+    // Appends a packet, overwriting the oldest ones if needed. pts is in
+    // milliseconds. Packets larger than a quarter of the file are dropped.
+    void append(Stream stream, const uint8_t* data, int size, int64_t pts,
+                bool keyFrame) noexcept {
+        uint64_t length = sizeof(Header) + size;
+        if (mData == nullptr || length > mCapacity / 4) return;
+
+        std::lock_guard<std::mutex> lock(mMutex);
+        while (mWrite + length - mOldest > mCapacity) {
+            Header header;
+            copyOut(mOldest, &header, sizeof(header));
+            mOldest += sizeof(Header) + header.size;
+        }
+        while (!mKeyFrames.empty() && mKeyFrames.front().position < mOldest)
+            mKeyFrames.pop_front();
+
+        Header header{(uint32_t)size, stream, keyFrame, pts};
+        if (stream == VIDEO && keyFrame)
+            mKeyFrames.push_back({pts, mWrite});
+        if (stream == VIDEO) mNewestPTS = pts;
+
+        copyIn(mWrite, &header, sizeof(header));
+        copyIn(mWrite + sizeof(header), data, size);
+        mWrite += length;
+        mCond.notify_all();
+    }
+
+    // Moves the reader to the newest key frame at or before pts, or the
+    // oldest one if pts is older. Returns the pts of that key frame, -1 if
+    // there is none yet.
+    int64_t seek(int64_t pts) noexcept {
+        std::lock_guard<std::mutex> lock(mMutex);
+        if (mKeyFrames.empty()) return -1;
+
+        auto it = mKeyFrames.begin();
+        for (auto i = mKeyFrames.begin(); i != mKeyFrames.end(); ++i) {
+            if (i->pts > pts) break;
+            it = i;
+        }
+        mRead = it->position;
+        return it->pts;
+    }
+
+    // Copies the packet at the reader into data and moves on. Returns its
+    // size, 0 if nothing arrived within timeoutMs. A reader the writer
+    // overtook continues at the oldest key frame.
+    int read(Record& record, std::vector<uint8_t>& data,
+             int timeoutMs) noexcept {
+        std::unique_lock<std::mutex> lock(mMutex);
+        if (!mCond.wait_for(lock, std::chrono::milliseconds(timeoutMs),
+                            [this] { return mRead < mWrite || mClosed; }))
+            return 0;
+        if (mClosed) return AVERROR_EOF;
+
+        if (mRead < mOldest) {
+            if (mKeyFrames.empty()) {
+                mRead = mWrite;
+                return 0;
+            }
+            mRead = mKeyFrames.front().position;
+            ++mOverruns;
+        }
+
+        Header header;
+        copyOut(mRead, &header, sizeof(header));
+        data.resize(header.size);
+        copyOut(mRead + sizeof(header), data.data(), header.size);
+        mRead += sizeof(header) + header.size;
+
+        record.stream = (Stream)header.stream;
+        record.keyFrame = header.keyFrame;
+        record.pts = header.pts;
+        return (int)header.size;
+    }
+
+    // Pts in milliseconds of the oldest key frame and the newest video
+    // packet, -1 while empty.
+    void range(int64_t& oldest, int64_t& newest) noexcept {
+        std::lock_guard<std::mutex> lock(mMutex);
+        oldest = mKeyFrames.empty() ? -1 : mKeyFrames.front().pts;
+        newest = mKeyFrames.empty() ? -1 : mNewestPTS;
+    }
+
+    // Times the reader fell so far behind that its packets were overwritten.
+    uint64_t overruns() noexcept {
+        std::lock_guard<std::mutex> lock(mMutex);
+        return mOverruns;
+    }
+
+    // Wakes the reader up for good.
+    void close() noexcept {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mClosed = true;
+        mCond.notify_all();
+    }
+
+   private:
+    struct Header {
+        uint32_t size;
+        uint8_t stream;
+        bool keyFrame;
+        int64_t pts;
+    };
+
+    struct KeyFrame {
+        int64_t pts;
+        uint64_t position;
+    };
+
+    uint8_t* mData = nullptr;
+    size_t mCapacity = 0;
+    // Byte positions since the start, the file offset is position modulo
+    // the capacity.
+    uint64_t mWrite = 0;
+    uint64_t mOldest = 0;
+    uint64_t mRead = 0;
+    std::deque<KeyFrame> mKeyFrames;
+    int64_t mNewestPTS = -1;
+    uint64_t mOverruns = 0;
+    bool mClosed = false;
+    std::mutex mMutex;
+    std::condition_variable mCond;
+
+    void copyIn(uint64_t position, const void* src, size_t size) noexcept {
+        size_t offset = position % mCapacity;
+        size_t first = std::min(size, mCapacity - offset);
+        memcpy(mData + offset, src, first);
+        memcpy(mData, (const uint8_t*)src + first, size - first);
+    }
+
+    void copyOut(uint64_t position, void* dst, size_t size) noexcept {
+        size_t offset = position % mCapacity;
+        size_t first = std::min(size, mCapacity - offset);
+        memcpy(dst, mData + offset, first);
+        memcpy((uint8_t*)dst + first, mData, size - first);
+    }
+};
+
+}  // namespace ffmpeg
+
+#endif  // FFMPEG_TIMESHIFT_BUFFER_H
@@ -1,7 +1,19 @@
 #include <jni.h>
+#include <algorithm>
+#include <deque>
+#include <pthread.h>
 #include <string>
+#include "ffmpeg/async_decoder.h"
 #include "ffmpeg/demuxer.h"
+#include "ffmpeg/packet_ring.h"
+#include "ffmpeg/sws_context.h"
+#include "ffmpeg/timeshift_buffer.h"
 #include <android/log.h>
+#include <android/native_window_jni.h>
+
+extern "C" {
+#include "libavcodec/jni.h"
+}
 
 #define TAG "FFMPEG"
 #define LOG_DEBUG(...) __android_log_print(ANDROID_LOG_DEBUG,TAG ,__VA_ARGS__)
@@ -19,59 +31,1030 @@ Java_com_example_ffmpeg_MainActivity_stringFromJNI(
     return env->NewStringUTF(hello.c_str());
 }
 
+static JavaVM* gJavaVM = nullptr;
+static pthread_key_t gThreadKey;
+static jclass gCallbackClass = nullptr;
+static jmethodID gOnVideo = nullptr;
+static jmethodID gOnAudio = nullptr;
+static jmethodID gOnVideoBatch = nullptr;
+static jmethodID gOnAudioBatch = nullptr;
+
+// Returns the JNIEnv of the calling thread. Native threads are attached on
+// first use and detached again when they exit.
+static JNIEnv* getEnv() noexcept {
+    JNIEnv* env = nullptr;
+    if(gJavaVM->GetEnv((void**)&env, JNI_VERSION_1_6) == JNI_OK) return env;
+
+    if(gJavaVM->AttachCurrentThread(&env, nullptr) != JNI_OK) {
+        LOG_ERROR("AttachCurrentThread() error");
+        return nullptr;
+    }
+    pthread_setspecific(gThreadKey, env);
+    return env;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+JNI_OnLoad(JavaVM* vm, void*) {
+    gJavaVM = vm;
+    // Needed by the MediaCodec decoders of FFmpeg. Fails if libffmpeg was
+    // built without --enable-jni, probing then skips MediaCodec.
+    if(av_jni_set_java_vm(vm, nullptr) < 0) LOG_WARN("FFmpeg without JNI, no MediaCodec decoders");
+
+    JNIEnv* env = nullptr;
+    if(vm->GetEnv((void**)&env, JNI_VERSION_1_6) != JNI_OK) return JNI_ERR;
+
+    pthread_key_create(&gThreadKey, [](void*) { gJavaVM->DetachCurrentThread(); });
+
+    auto callbackClass = env->FindClass("com/hhqj/player/SpherePlayer$Demuxer$Callback");
+    if(callbackClass == nullptr) return JNI_ERR;
+    gCallbackClass = (jclass)env->NewGlobalRef(callbackClass);
+    env->DeleteLocalRef(callbackClass);
+
+    gOnVideo = env->GetMethodID(gCallbackClass, "onVideo", "([BJ)V");
+    gOnAudio = env->GetMethodID(gCallbackClass, "onAudio", "([BJ)V");
+    gOnVideoBatch = env->GetMethodID(gCallbackClass, "onVideoBatch", "([B[I[JI)V");
+    gOnAudioBatch = env->GetMethodID(gCallbackClass, "onAudioBatch", "([B[I[JI)V");
+    if(!gOnVideo || !gOnAudio || !gOnVideoBatch || !gOnAudioBatch) return JNI_ERR;
+
+    return JNI_VERSION_1_6;
+}
+
+// Delivers the packets of one stream to the Java callback, either one upcall
+// per packet or batchSize packets per upcall. Batches are handed over in
+// arrays that are reused, so they are only valid during the upcall. A
+// partial batch waits for flush() or is dropped by clear().
+class PacketSink {
+public:
+    PacketSink(jmethodID single, jmethodID batch) noexcept : mSingle(single), mBatch(batch) {}
+
+    void setBatchSize(int size) noexcept {
+        mBatchSize = size < 1 ? 1 : size;
+    }
+
+    void deliver(jobject callback, const uint8_t* data, int len, int64_t pts) noexcept {
+        auto env = getEnv();
+        if(env == nullptr) return;
+
+        if(mBatchSize == 1) {
+            if(env->PushLocalFrame(1) < 0) return;
+            auto byteArray = env->NewByteArray(len);
+            env->SetByteArrayRegion(byteArray, 0, len, (const jbyte *) data);
+            env->CallVoidMethod(callback, mSingle, byteArray, (jlong)pts);
+            env->PopLocalFrame(nullptr);
+            checkException(env);
+            return;
+        }
+
+        mData.insert(mData.end(), data, data + len);
+        mSizes.push_back(len);
+        mPTS.push_back(pts);
+        if((int)mSizes.size() >= mBatchSize) send(env, callback);
+    }
+
+    // Delivers the packets of a partial batch, at the end of the stream.
+    void flush(jobject callback) noexcept {
+        if(mSizes.empty()) return;
+        auto env = getEnv();
+        if(env == nullptr) return;
+        send(env, callback);
+    }
+
+    // Drops the packets of a partial batch, at a discontinuity.
+    void clear() noexcept {
+        mData.clear();
+        mSizes.clear();
+        mPTS.clear();
+    }
+
+    // Forgets the stream, the sink can be used for the next one.
+    void release(JNIEnv* env) noexcept {
+        clear();
+        if(mDataArray) env->DeleteGlobalRef(mDataArray);
+        if(mSizeArray) env->DeleteGlobalRef(mSizeArray);
+        if(mPTSArray) env->DeleteGlobalRef(mPTSArray);
+        mDataArray = nullptr;
+        mSizeArray = nullptr;
+        mPTSArray = nullptr;
+    }
+
+private:
+    jmethodID mSingle;
+    jmethodID mBatch;
+    int mBatchSize = 1;
+    std::vector<uint8_t> mData;
+    std::vector<jint> mSizes;
+    std::vector<jlong> mPTS;
+    jbyteArray mDataArray = nullptr;
+    jintArray mSizeArray = nullptr;
+    jlongArray mPTSArray = nullptr;
+
+    void send(JNIEnv* env, jobject callback) noexcept {
+        auto count = (jint)mSizes.size();
+        auto bytes = (jint)mData.size();
+
+        if(mDataArray == nullptr || env->GetArrayLength(mDataArray) < bytes) {
+            auto array = env->NewByteArray(bytes * 2);
+            if(array == nullptr) return;
+            if(mDataArray) env->DeleteGlobalRef(mDataArray);
+            mDataArray = (jbyteArray)env->NewGlobalRef(array);
+            env->DeleteLocalRef(array);
+        }
+        if(mSizeArray == nullptr || env->GetArrayLength(mSizeArray) < count) {
+            auto sizeArray = env->NewIntArray(count);
+            auto ptsArray = env->NewLongArray(count);
+            if(sizeArray == nullptr || ptsArray == nullptr) return;
+            if(mSizeArray) env->DeleteGlobalRef(mSizeArray);
+            if(mPTSArray) env->DeleteGlobalRef(mPTSArray);
+            mSizeArray = (jintArray)env->NewGlobalRef(sizeArray);
+            mPTSArray = (jlongArray)env->NewGlobalRef(ptsArray);
+            env->DeleteLocalRef(sizeArray);
+            env->DeleteLocalRef(ptsArray);
+        }
+
+        env->SetByteArrayRegion(mDataArray, 0, bytes, (const jbyte *) mData.data());
+        env->SetIntArrayRegion(mSizeArray, 0, count, mSizes.data());
+        env->SetLongArrayRegion(mPTSArray, 0, count, mPTS.data());
+        env->CallVoidMethod(callback, mBatch, mDataArray, mSizeArray, mPTSArray, count);
+        checkException(env);
+        clear();
+    }
+
+    static void checkException(JNIEnv* env) noexcept {
+        if(!env->ExceptionCheck()) return;
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+        LOG_ERROR("exception thrown from demuxer callback");
+    }
+};
+
+// Decoded frames on their way from the decoder thread to the Java thread
+// that paces them.
+class FrameQueue {
+public:
+    explicit FrameQueue(size_t capacity) noexcept : mCapacity(capacity) {}
+
+    // Waits for room. Returns false if the queue was closed meanwhile.
+    bool push(ffmpeg::Frame&& frame) noexcept {
+        std::unique_lock<std::mutex> lock(mMutex);
+        mCond.wait(lock, [this] { return mFrames.size() < mCapacity || mClosed; });
+        if(mClosed) return false;
+
+        mFrames.push_back(std::move(frame));
+        mCond.notify_all();
+        return true;
+    }
+
+    // Returns true if a frame was moved into frame within timeoutMs.
+    bool pop(ffmpeg::Frame& frame, int timeoutMs) noexcept {
+        std::unique_lock<std::mutex> lock(mMutex);
+        if(!mCond.wait_for(lock, std::chrono::milliseconds(timeoutMs),
+                           [this] { return !mFrames.empty() || mClosed; })) return false;
+        if(mFrames.empty()) return false;
+
+        frame = std::move(mFrames.front());
+        mFrames.pop_front();
+        mCond.notify_all();
+        return true;
+    }
+
+    void close() noexcept {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mClosed = true;
+        mCond.notify_all();
+    }
+
+    void clear() noexcept {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mFrames.clear();
+        mCond.notify_all();
+    }
+
+private:
+    const size_t mCapacity;
+    std::deque<ffmpeg::Frame> mFrames;
+    bool mClosed = false;
+    std::mutex mMutex;
+    std::condition_variable mCond;
+};
+
+// Lends the packets popped from a ring to FFmpeg without copying them. A
+// packet's storage comes back once the decoder dropped its last reference
+// and is swapped into the ring again by a later pop, so steady state does
+// not allocate packet buffers.
+class PacketStorage {
+public:
+    // Moves the oldest packet of ring into packet, which has to be empty.
+    // Returns like PacketRing::pop().
+    int pop(ffmpeg::PacketRing& ring, AVPacket* packet, int timeoutMs) noexcept {
+        auto entry = take();
+        if(entry == nullptr) return AVERROR(ENOMEM);
+
+        int64_t pts = 0;
+        int ret = ring.pop(entry->data, pts, timeoutMs);
+        if(ret <= 0) {
+            give(entry);
+            return ret;
+        }
+
+        // Decoders may read a little past the end of the packet.
+        entry->data.resize(ret + AV_INPUT_BUFFER_PADDING_SIZE);
+        packet->buf = av_buffer_create(entry->data.data(), (int)entry->data.size(),
+                                       &PacketStorage::releaseBuffer, entry, 0);
+        if(packet->buf == nullptr) {
+            give(entry);
+            return AVERROR(ENOMEM);
+        }
+        packet->data = entry->data.data();
+        packet->size = ret;
+        packet->pts = pts;
+        return ret;
+    }
+
+private:
+    struct Entry {
+        std::vector<uint8_t> data;
+        PacketStorage* storage = nullptr;
+    };
+
+    std::mutex mMutex;
+    std::vector<std::unique_ptr<Entry>> mEntries;
+    std::vector<Entry*> mFree;
+
+    Entry* take() noexcept {
+        std::lock_guard<std::mutex> lock(mMutex);
+        if(!mFree.empty()) {
+            auto entry = mFree.back();
+            mFree.pop_back();
+            return entry;
+        }
+
+        std::unique_ptr<Entry> entry(new (std::nothrow) Entry());
+        if(!entry) return nullptr;
+        entry->storage = this;
+        mEntries.push_back(std::move(entry));
+        // give() runs in FFmpeg's free callback and must not allocate.
+        mFree.reserve(mEntries.size());
+        return mEntries.back().get();
+    }
+
+    void give(Entry* entry) noexcept {
+        std::lock_guard<std::mutex> lock(mMutex);
+        mFree.push_back(entry);
+    }
+
+    static void releaseBuffer(void* opaque, uint8_t*) noexcept {
+        auto entry = (Entry*)opaque;
+        entry->storage->give(entry);
+    }
+};
+
+// Software decoding of the video ring for streams MediaCodec cannot play.
+// Frames are converted to RGBA and posted to the renderer's surface, which
+// makes them show up in its external texture like MediaCodec output.
+struct SoftwareVideo {
+    static constexpr size_t FRAME_QUEUE_SIZE = 4;
+
+    ANativeWindow* window = nullptr;
+    FrameQueue frames{FRAME_QUEUE_SIZE};
+    ffmpeg::Frame current;
+    bool hasCurrent = false;
+    bool locked = false;
+    std::unique_ptr<ffmpeg::SWSContext> sws;
+    int width = 0;
+    int height = 0;
+    int format = AV_PIX_FMT_NONE;
+    // Outlives the decoder, which may hold on to packets until it is freed.
+    PacketStorage packets;
+    ffmpeg::AsyncDecoder decoder;
+
+    ~SoftwareVideo() {
+        stop();
+    }
+
+    // Disconnects from the window so another producer can use its surface.
+    // The decode statistics stay readable.
+    void stop() noexcept {
+        frames.close();
+        decoder.stop();
+        post();
+        if(window) ANativeWindow_release(window);
+        window = nullptr;
+    }
+
+    // Converts the current frame into a window buffer that stays locked
+    // until post().
+    int draw() noexcept {
+        auto frame = current.get();
+        if(frame->width != width || frame->height != height || frame->format != format) {
+            try {
+                sws.reset(new ffmpeg::SWSContext(frame->width, frame->height, (AVPixelFormat)frame->format,
+                                                 frame->width, frame->height, AV_PIX_FMT_RGBA));
+            } catch (const std::exception& e) {
+                LOG_ERROR("%s", e.what());
+                return AVERROR(EINVAL);
+            }
+            width = frame->width;
+            height = frame->height;
+            format = frame->format;
+            ANativeWindow_setBuffersGeometry(window, width, height, WINDOW_FORMAT_RGBA_8888);
+        }
+
+        ANativeWindow_Buffer buffer;
+        if(ANativeWindow_lock(window, &buffer, nullptr) < 0) return AVERROR_EXTERNAL;
+        locked = true;
+
+        uint8_t* dst[] = {(uint8_t*)buffer.bits};
+        int dstStride[] = {buffer.stride * 4};
+        sws->scale(frame->data, frame->linesize, 0, height, dst, dstStride);
+        return 0;
+    }
+
+    void post() noexcept {
+        if(!locked) return;
+        ANativeWindow_unlockAndPost(window);
+        locked = false;
+    }
+};
+
+// Feeds the packets of the time-shift buffer into the rings in place of the
+// live ones, paced by their pts. Playback stays that far behind live until
+// it is stopped.
+class TimeShiftReplay {
+public:
+    // Packets are pushed this much ahead of their time to keep the rings
+    // filled.
+    static constexpr int64_t LEAD_MS = 500;
+    // Larger gaps between packets are treated as discontinuities.
+    static constexpr int64_t MAX_GAP_MS = 5000;
+
+    TimeShiftReplay(ffmpeg::TimeShiftBuffer& buffer, ffmpeg::PacketRing& video,
+                    ffmpeg::PacketRing& audio) noexcept
+            : mBuffer(buffer), mVideo(video), mAudio(audio) {}
+
+    ~TimeShiftReplay() {
+        stop();
+        if(mThread.joinable()) mThread.join();
+    }
+
+    // Lets the thread finish after its current packet, without waiting for
+    // it. A push blocked on a full ring is released by discarding the ring.
+    void stop() noexcept { mRunning = false; }
+
+    // Starts at the newest key frame at or before pts. Returns the pts of
+    // that key frame, -1 if nothing is buffered yet.
+    int64_t start(int64_t pts) noexcept {
+        auto startPTS = mBuffer.seek(pts);
+        if(startPTS < 0) return startPTS;
+
+        mRunning = true;
+        mThread = std::thread(&TimeShiftReplay::run, this);
+        return startPTS;
+    }
+
+private:
+    ffmpeg::TimeShiftBuffer& mBuffer;
+    ffmpeg::PacketRing& mVideo;
+    ffmpeg::PacketRing& mAudio;
+    std::atomic<bool> mRunning{false};
+    std::thread mThread;
+
+    void run() noexcept {
+        ffmpeg::TimeShiftBuffer::Record record;
+        std::vector<uint8_t> data;
+        int64_t basePTS = -1;
+        auto baseTime = std::chrono::steady_clock::now();
+
+        while(mRunning) {
+            int ret = mBuffer.read(record, data, 10);
+            if(ret < 0) break;
+            if(ret == 0) continue;
+
+            if(record.stream == ffmpeg::TimeShiftBuffer::VIDEO) {
+                auto now = std::chrono::steady_clock::now();
+                if(basePTS < 0 || record.pts < basePTS || record.pts - basePTS > MAX_GAP_MS) {
+                    basePTS = record.pts;
+                    baseTime = now;
+                }
+                auto due = baseTime + std::chrono::milliseconds(record.pts - basePTS - LEAD_MS);
+                while(mRunning && now < due) {
+                    std::this_thread::sleep_for(std::min<std::chrono::steady_clock::duration>(
+                            due - now, std::chrono::milliseconds(10)));
+                    now = std::chrono::steady_clock::now();
+                }
+                // Keep the base close so a slow consumer does not make
+                // everything after it due at once.
+                if(now - due > std::chrono::milliseconds(MAX_GAP_MS)) {
+                    basePTS = record.pts;
+                    baseTime = now;
+                }
+                mVideo.push(data.data(), ret, record.pts, record.keyFrame);
+            } else {
+                mAudio.push(data.data(), ret, record.pts, record.keyFrame);
+            }
+        }
+    }
+};
+
+struct DemuxerContext {
+    static constexpr size_t VIDEO_RING_SIZE = 100;
+    static constexpr size_t AUDIO_RING_SIZE = 100;
+
+    ffmpeg::Demuxer demuxer;
+    ffmpeg::PacketRing videoRing{VIDEO_RING_SIZE};
+    ffmpeg::PacketRing audioRing{AUDIO_RING_SIZE};
+    PacketSink videoSink{gOnVideo, gOnVideoBatch};
+    PacketSink audioSink{gOnAudio, gOnAudioBatch};
+    jobject callback = nullptr;
+    int64_t readPTS = -1;
+    int64_t readAudioPTS = -1;
+    std::atomic<int64_t> latestVideoPTS{-1};
+    std::unique_ptr<SoftwareVideo> softwareVideo;
+    std::unique_ptr<ffmpeg::TimeShiftBuffer> timeShift;
+    std::unique_ptr<TimeShiftReplay> replay;
+    // Set while the rings are fed from anywhere but the live stream. Live
+    // packets and the replay never push at the same time, the rings have a
+    // single producer.
+    std::atomic<bool> liveBlocked{false};
+    // Set by the demux thread while it pushes a live packet.
+    std::atomic<bool> livePushing{false};
+    std::mutex liveMutex;
+    std::condition_variable liveCond;
+    // Seek requested by Java, done by the demux thread in flush().
+    std::atomic<bool> seekPending{false};
+    std::atomic<int64_t> seekMs{0};
+    std::atomic<bool> seekAccurate{false};
+
+    // Pushes a packet of the live stream unless playback left it.
+    void pushLive(ffmpeg::PacketRing& ring, const uint8_t* data, int len, int64_t pts, bool keyFrame) noexcept {
+        livePushing.store(true);
+        if(!liveBlocked.load()) ring.push(data, len, pts, keyFrame);
+        livePushing.store(false);
+
+        if(liveBlocked.load()) {
+            std::lock_guard<std::mutex> lock(liveMutex);
+            liveCond.notify_all();
+        }
+    }
+
+    // Stops feeding the rings and drops the packets and frames queued so far,
+    // before playback continues at another position. Does not wait for the
+    // consumer, pushes blocked on a full ring give up.
+    void beginDiscontinuity() noexcept {
+        liveBlocked.store(true);
+        if(replay) replay->stop();
+        videoRing.discard();
+        audioRing.discard();
+        {
+            std::unique_lock<std::mutex> lock(liveMutex);
+            liveCond.wait(lock, [this] { return !livePushing.load(); });
+        }
+        replay = nullptr;
+
+        // Drops whatever was pushed while the producers were stopping.
+        videoRing.discard();
+        audioRing.discard();
+        if(softwareVideo) {
+            // The codec still holds pictures of the old position.
+            auto frames = &softwareVideo->frames;
+            softwareVideo->decoder.flush([frames] { frames->clear(); });
+            frames->clear();
+        }
+    }
+
+    // Runs on the demux thread after beginDiscontinuity(), the rings are fed
+    // again from the new position.
+    void seek() noexcept {
+        // Batched packets from before the seek.
+        videoSink.clear();
+        audioSink.clear();
+        auto ret = demuxer.seek(seekMs, seekAccurate);
+        if(ret < 0) LOG_WARN("seek to %lld failed: %s", (long long)seekMs.load(), ffmpeg::getErrorString(ret).c_str());
+        liveBlocked = false;
+    }
+
+    // Releases everything tied to the stream but keeps the ring buffers, so
+    // the next session does not have to allocate them again.
+    void reset(JNIEnv* env) noexcept {
+        videoRing.close();
+        audioRing.close();
+        if(timeShift) timeShift->close();
+        replay = nullptr;
+        timeShift = nullptr;
+        liveBlocked = false;
+        seekPending = false;
+        softwareVideo = nullptr;
+        demuxer.reset();
+        videoRing.reset();
+        audioRing.reset();
+        videoSink.release(env);
+        audioSink.release(env);
+        if(callback) env->DeleteGlobalRef(callback);
+        callback = nullptr;
+        readPTS = -1;
+        readAudioPTS = -1;
+        latestVideoPTS = -1;
+    }
+};
+
 extern "C" JNIEXPORT jlong JNICALL
 Java_com_hhqj_player_SpherePlayer_00024Demuxer_createDemuxer(JNIEnv *, jobject ) noexcept {
-    return (jlong)(new ffmpeg::Demuxer());
+    return (jlong)(new DemuxerContext());
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_destroyDemuxer(JNIEnv *env, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    if(!context) return;
+
+    // Wakes the replay and the software decoder up before they are joined.
+    context->videoRing.close();
+    context->audioRing.close();
+    if(context->replay) context->replay->stop();
+    context->replay = nullptr;
+    context->softwareVideo = nullptr;
+    context->videoSink.release(env);
+    context->audioSink.release(env);
+    if(context->callback) env->DeleteGlobalRef(context->callback);
+    delete context;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_resetDemuxer(JNIEnv *env, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    context->reset(env);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_setBatchSize(JNIEnv *, jobject , jlong pointer, jint size) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    context->videoSink.setBatchSize(size);
+    context->audioSink.setBatchSize(size);
 }
 
 extern "C" JNIEXPORT void JNICALL
-Java_com_hhqj_player_SpherePlayer_00024Demuxer_destroyDemuxer(JNIEnv *, jobject , jlong pointer) noexcept {
-    const auto demuxer = (ffmpeg::Demuxer*)pointer;
-    if(demuxer) delete demuxer;
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_setStartupOptions(JNIEnv *, jobject , jlong pointer, jlong probeSize,
+                                                                 jlong analyzeDurationUs, jint bufferSize, jboolean noBuffer,
+                                                                 jboolean flushPackets, jboolean skipStreamInfo,
+                                                                 jlong openTimeoutUs, jlong readTimeoutUs) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    ffmpeg::Demuxer::StartupOptions options;
+    options.input.probeSize = probeSize;
+    options.input.analyzeDurationUs = analyzeDurationUs;
+    options.input.bufferSize = bufferSize;
+    options.input.noBuffer = noBuffer;
+    options.input.openTimeoutUs = openTimeoutUs;
+    options.input.readTimeoutUs = readTimeoutUs;
+    options.flushPackets = flushPackets;
+    options.skipStreamInfo = skipStreamInfo;
+    context->demuxer.setStartupOptions(options);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_getStartupTimings(JNIEnv *env, jobject , jlong pointer, jlongArray values) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    const auto& timings = context->demuxer.startupTimings();
+
+    jlong buf[] = {
+            (jlong)timings.openUs.load(),
+            (jlong)timings.streamInfoUs.load(),
+            (jlong)timings.firstVideoPacketUs.load(),
+    };
+    env->SetLongArrayRegion(values, 0, 3, buf);
 }
 
 extern "C" JNIEXPORT jint JNICALL
-Java_com_hhqj_player_SpherePlayer_00024Demuxer_openInput(JNIEnv *env, jobject obj, jlong pointer, jstring url, jobject callback) noexcept {
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_openInput(JNIEnv *env, jobject obj, jlong pointer, jstring url) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+
     auto urlString = env->GetStringUTFChars(url, 0);
-    const auto demuxer = (ffmpeg::Demuxer*)pointer;
+    auto ret = context->demuxer.openInput(urlString);
+    env->ReleaseStringUTFChars(url, urlString);
+    return ret;
+}
 
-    auto ret = demuxer->openInput(urlString);
-    if(ret < 0) return ret;
+// Called on the demux thread after flush() failed. The rings, outputs and
+// whatever decodes them stay as they are.
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_reconnect(JNIEnv *env, jobject , jlong pointer, jstring url) noexcept {
+    const auto context = (DemuxerContext*)pointer;
 
+    auto urlString = env->GetStringUTFChars(url, 0);
+    auto ret = context->demuxer.reopenInput(urlString);
     env->ReleaseStringUTFChars(url, urlString);
+    if(ret < 0) return ret;
 
-    jobject refCallback = env->NewGlobalRef(callback);
+    // The new connection starts somewhere else in the stream, continue at
+    // its first key frame. Packets replayed from the time-shift buffer are
+    // left alone.
+    if(!context->liveBlocked) {
+        context->videoRing.discard();
+        context->audioRing.discard();
+    }
+    return 0;
+}
 
-    ret = demuxer->openVideoOutput([=](uint8_t* data, int len){
-        auto jclass = env->GetObjectClass(refCallback);
-        auto jmethod = env->GetMethodID(jclass, "onVideo", "([BJ)V");
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_getVideoCodecName(JNIEnv *env, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    auto parameters = context->demuxer.videoParameters();
+    if(parameters == nullptr) return nullptr;
+
+    return env->NewStringUTF(avcodec_get_name(parameters->codec_id));
+}
 
-        jbyteArray byteArray = env->NewByteArray(len);
-        env->SetByteArrayRegion(byteArray, 0, len, (jbyte *) data);
-        env->CallVoidMethod(refCallback, jmethod, byteArray, demuxer->videoPTS());
-        return len;
-    });
+extern "C" JNIEXPORT jbyteArray JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_getVideoExtradata(JNIEnv *env, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    auto parameters = context->demuxer.videoParameters();
+    if(parameters == nullptr || parameters->extradata_size <= 0) return nullptr;
+
+    auto array = env->NewByteArray(parameters->extradata_size);
+    if(array == nullptr) return nullptr;
+    env->SetByteArrayRegion(array, 0, parameters->extradata_size, (const jbyte *)parameters->extradata);
+    return array;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_getVideoSize(JNIEnv *env, jobject , jlong pointer, jintArray values) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    auto parameters = context->demuxer.videoParameters();
+    if(parameters == nullptr) return AVERROR_STREAM_NOT_FOUND;
+
+    jint buf[] = {parameters->width, parameters->height};
+    env->SetIntArrayRegion(values, 0, 2, buf);
+    return 0;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_openOutputs(JNIEnv *env, jobject obj, jlong pointer, jobject callback, jboolean directVideo) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    const auto demuxer = &context->demuxer;
+    int ret = 0;
+
+    jobject refCallback = env->NewGlobalRef(callback);
+    context->callback = refCallback;
+
+    if(directVideo) {
+        ret = demuxer->openVideoOutput([=](uint8_t* data, int len){
+            context->latestVideoPTS.store(demuxer->videoPTS(), std::memory_order_relaxed);
+            if(context->timeShift) {
+                context->timeShift->append(ffmpeg::TimeShiftBuffer::VIDEO, data, len,
+                                           demuxer->videoPTS(), demuxer->videoKeyFrame());
+            }
+            context->pushLive(context->videoRing, data, len, demuxer->videoPTS(), demuxer->videoKeyFrame());
+            return len;
+        });
+        context->videoRing.setCodec(demuxer->videoCodecID());
+    } else {
+        ret = demuxer->openVideoOutput([=](uint8_t* data, int len){
+            context->latestVideoPTS.store(demuxer->videoPTS(), std::memory_order_relaxed);
+            context->videoSink.deliver(refCallback, data, len, demuxer->videoPTS());
+            return len;
+        });
+    }
     if(ret < 0) return ret;
 
 
 
-    ret = demuxer->openAudioOutput([=](uint8_t* data, int len){
-        auto jclass = env->GetObjectClass(refCallback);
-        auto jmethod = env->GetMethodID(jclass, "onAudio", "([BJ)V");
+    if(directVideo) {
+        ret = demuxer->openAudioOutput([=](uint8_t* data, int len){
+            if(context->timeShift) {
+                context->timeShift->append(ffmpeg::TimeShiftBuffer::AUDIO, data, len, demuxer->audioPTS(), true);
+            }
+            context->pushLive(context->audioRing, data, len, demuxer->audioPTS(), true);
+            return len;
+        });
+    } else {
+        ret = demuxer->openAudioOutput([=](uint8_t* data, int len){
+            context->audioSink.deliver(refCallback, data, len, demuxer->audioPTS());
+            return len;
+        });
+    }
+    if(ret < 0) {
+        LOG_WARN("no audio output: %s", ffmpeg::getErrorString(ret).c_str());
+        demuxer->closeAudioOutput();
+    }
 
-        jbyteArray byteArray = env->NewByteArray(len);
-        env->SetByteArrayRegion(byteArray, 0, len, (jbyte *) data);
-        env->CallVoidMethod(refCallback, jmethod, byteArray, demuxer->audioPTS());
-        return len;
-    });
+    return 0;
+}
 
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_flush(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    if(context->seekPending.exchange(false)) context->seek();
+    auto ret = context->demuxer.flush();
+    // End of stream, an error or close(): nothing completes a partial batch
+    // any more.
+    if(ret < 0 && context->callback) {
+        context->videoSink.flush(context->callback);
+        context->audioSink.flush(context->callback);
+    }
     return ret;
 }
 
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_seek(JNIEnv *, jobject , jlong pointer, jlong ms, jboolean accurate) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    context->seekMs = ms;
+    context->seekAccurate = accurate;
+    context->seekPending = true;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_getDuration(JNIEnv *env, jobject , jlong pointer, jlongArray values) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    const auto& demuxer = context->demuxer;
+
+    jlong buf[] = {
+            (jlong)demuxer.durationMs(),
+            (jlong)demuxer.startTimeMs(),
+            demuxer.isSeekable() ? 1 : 0,
+    };
+    env->SetLongArrayRegion(values, 0, 3, buf);
+}
+
 extern "C" JNIEXPORT jint JNICALL
-Java_com_hhqj_player_SpherePlayer_00024Demuxer_flush(JNIEnv *, jobject , jlong pointer) noexcept {
-    const auto demuxer = (ffmpeg::Demuxer*)pointer;
-    return demuxer->flush();
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_readVideo(JNIEnv *env, jobject , jlong pointer, jobject buffer, jint timeoutMs) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+
+    auto address = (uint8_t*)env->GetDirectBufferAddress(buffer);
+    if(address == nullptr) return AVERROR(EINVAL);
+    auto capacity = (int)env->GetDirectBufferCapacity(buffer);
+
+    return context->videoRing.pop(address, capacity, context->readPTS, timeoutMs);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_readPTS(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    return context->readPTS;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_readAudio(JNIEnv *env, jobject , jlong pointer, jobject buffer, jint timeoutMs) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+
+    auto address = (uint8_t*)env->GetDirectBufferAddress(buffer);
+    if(address == nullptr) return AVERROR(EINVAL);
+    auto capacity = (int)env->GetDirectBufferCapacity(buffer);
+
+    return context->audioRing.pop(address, capacity, context->readAudioPTS, timeoutMs);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_readAudioPTS(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    return context->readAudioPTS;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_getAudioFormat(JNIEnv *env, jobject , jlong pointer, jintArray values) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    auto parameters = context->demuxer.audioParameters();
+    if(parameters == nullptr) return AVERROR_STREAM_NOT_FOUND;
+
+    jint buf[] = {parameters->sample_rate, parameters->channels};
+    env->SetIntArrayRegion(values, 0, 2, buf);
+    return 0;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_latestVideoPTS(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    return context->latestVideoPTS.load(std::memory_order_relaxed);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_skipToKeyFrame(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    return context->videoRing.skipToNewestKeyFrame();
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_setBackpressurePolicy(JNIEnv *, jobject , jlong pointer, jint policy) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    context->videoRing.setPolicy((ffmpeg::PacketRing::Policy)policy);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_getStatistics(JNIEnv *env, jobject , jlong pointer, jlongArray values) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    const auto& statistics = context->videoRing.statistics();
+    const auto& packetPool = context->demuxer.packetPoolStatistics();
+    const auto video = context->softwareVideo.get();
+    uint64_t recordWritten = 0;
+    uint64_t recordDropped = 0;
+    context->demuxer.recordingStatistics(recordWritten, recordDropped);
+
+    jlong buf[] = {
+            (jlong)statistics.pushed.load(),
+            (jlong)statistics.popped.load(),
+            (jlong)statistics.droppedOldest.load(),
+            (jlong)statistics.droppedNonReference.load(),
+            (jlong)statistics.droppedUntilKeyFrame.load(),
+            (jlong)statistics.blockedUs.load(),
+            (jlong)context->videoRing.size(),
+            (jlong)packetPool.hits.load(),
+            (jlong)packetPool.misses.load(),
+            video ? (jlong)video->decoder.framePoolStatistics().hits.load() : 0,
+            video ? (jlong)video->decoder.framePoolStatistics().misses.load() : 0,
+            (jlong)recordWritten,
+            (jlong)recordDropped,
+            (jlong)statistics.droppedOversized.load(),
+    };
+    auto len = std::min((jsize)(sizeof(buf) / sizeof(buf[0])), env->GetArrayLength(values));
+    env->SetLongArrayRegion(values, 0, len, buf);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_startRecording(JNIEnv *env, jobject , jlong pointer, jstring path, jboolean fragmented) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    ffmpeg::Recorder::Options options;
+    options.fragmented = fragmented;
+
+    auto pathString = env->GetStringUTFChars(path, 0);
+    auto ret = context->demuxer.startRecording(pathString, options);
+    env->ReleaseStringUTFChars(path, pathString);
+    return ret;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_stopRecording(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    return context->demuxer.stopRecording();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_enableTimeShift(JNIEnv *env, jobject , jlong pointer, jstring path, jlong capacity) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    std::unique_ptr<ffmpeg::TimeShiftBuffer> buffer(new ffmpeg::TimeShiftBuffer());
+
+    auto pathString = env->GetStringUTFChars(path, 0);
+    auto ret = buffer->open(pathString, (size_t)capacity);
+    env->ReleaseStringUTFChars(path, pathString);
+    if(ret < 0) return ret;
+
+    context->timeShift = std::move(buffer);
+    return 0;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_beginDiscontinuity(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    context->beginDiscontinuity();
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_startTimeShift(JNIEnv *, jobject , jlong pointer, jlong pts) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    if(!context->timeShift) return AVERROR(ENOSYS);
+    // The replay owns the rings, live packets have to be stopped first.
+    if(!context->liveBlocked) return AVERROR(EINVAL);
+    context->replay = nullptr;
+
+    std::unique_ptr<TimeShiftReplay> replay(
+            new TimeShiftReplay(*context->timeShift, context->videoRing, context->audioRing));
+    auto startPTS = replay->start(pts);
+    if(startPTS < 0) return startPTS;
+
+    context->replay = std::move(replay);
+    return startPTS;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_resumeLive(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    context->replay = nullptr;
+    context->liveBlocked = false;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_getTimeShiftRange(JNIEnv *env, jobject , jlong pointer, jlongArray values) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    int64_t oldest = -1;
+    int64_t newest = -1;
+    uint64_t overruns = 0;
+    if(context->timeShift) {
+        context->timeShift->range(oldest, newest);
+        overruns = context->timeShift->overruns();
+    }
+
+    jlong buf[] = {(jlong)oldest, (jlong)newest, (jlong)overruns};
+    env->SetLongArrayRegion(values, 0, 3, buf);
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_isRecording(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    return context->demuxer.isRecording();
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_close(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    context->demuxer.interrupt();
+    context->videoRing.close();
+    context->audioRing.close();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_startSoftwareDecoder(JNIEnv *env, jobject , jlong pointer, jobject surface,
+                                                                    jint threadType, jint threadCount, jboolean hardware) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    auto parameters = context->demuxer.videoParameters();
+    if(parameters == nullptr) return AVERROR_STREAM_NOT_FOUND;
+
+    std::unique_ptr<SoftwareVideo> video(new SoftwareVideo());
+    video->window = ANativeWindow_fromSurface(env, surface);
+    if(video->window == nullptr) return AVERROR(EINVAL);
+
+    ffmpeg::DecoderThreading threading;
+    threading.type = threadType;
+    threading.count = threadCount;
+    video->decoder.setThreading(threading);
+
+    auto ring = &context->videoRing;
+    auto frames = &video->frames;
+    auto packets = &video->packets;
+    auto decoder = &video->decoder;
+    video->decoder.onDecode = [frames, decoder](ffmpeg::JoinThread::StopFlag&, ffmpeg::Frame frame) {
+        if(!frames->push(std::move(frame))) decoder->recycle(std::move(frame));
+    };
+    video->decoder.onClose = [frames](ffmpeg::JoinThread::StopFlag&) {
+        frames->close();
+    };
+    bool started = video->decoder.start(parameters, AVRational{1, 1000}, [ring, packets](ffmpeg::Packet& packet) {
+        int ret = packets->pop(*ring, packet.get(), 10);
+        if(ret == 0) return ring->isClosed() ? (int)AVERROR_EOF : 0;
+        return ret;
+    }, hardware);
+    if(!started) return AVERROR(ENOMEM);
+
+    context->softwareVideo = std::move(video);
+    return 0;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_dequeueFrame(JNIEnv *, jobject , jlong pointer, jint timeoutMs) noexcept {
+    const auto video = ((DemuxerContext*)pointer)->softwareVideo.get();
+    if(video == nullptr) return AVERROR(EINVAL);
+
+    video->post();
+    video->decoder.recycle(std::move(video->current));
+    video->hasCurrent = video->frames.pop(video->current, timeoutMs);
+    if(video->hasCurrent) return 1;
+
+    auto error = video->decoder.error();
+    return error < 0 ? error : 0;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_framePTS(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto video = ((DemuxerContext*)pointer)->softwareVideo.get();
+    if(video == nullptr || !video->hasCurrent) return -1;
+
+    auto pts = video->current->best_effort_timestamp;
+    return pts == AV_NOPTS_VALUE ? -1 : pts * 1000;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_drawFrame(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto video = ((DemuxerContext*)pointer)->softwareVideo.get();
+    if(video == nullptr || !video->hasCurrent) return AVERROR(EINVAL);
+
+    video->hasCurrent = false;
+    return video->draw();
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_postFrame(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto video = ((DemuxerContext*)pointer)->softwareVideo.get();
+    if(video) video->post();
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_getDecodeTime(JNIEnv *env, jobject , jlong pointer, jlongArray values) noexcept {
+    const auto video = ((DemuxerContext*)pointer)->softwareVideo.get();
+    jlong buf[] = {-1, -1};
+    if(video) {
+        buf[0] = video->decoder.lastDecodeTimeUs();
+        buf[1] = video->decoder.averageDecodeTimeUs();
+    }
+    env->SetLongArrayRegion(values, 0, 2, buf);
+}
+
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_getSoftwareDecoderName(JNIEnv *env, jobject , jlong pointer) noexcept {
+    const auto video = ((DemuxerContext*)pointer)->softwareVideo.get();
+    if(video == nullptr) return nullptr;
+    return env->NewStringUTF(video->decoder.hardwareName());
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_hhqj_player_SpherePlayer_00024Demuxer_stopSoftwareDecoder(JNIEnv *, jobject , jlong pointer) noexcept {
+    const auto context = (DemuxerContext*)pointer;
+    context->videoRing.close();
+    if(context->softwareVideo) context->softwareVideo->stop();
 }
 
 extern "C" JNIEXPORT jstring JNICALL
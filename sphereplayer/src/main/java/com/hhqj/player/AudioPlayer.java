@@ -0,0 +1,293 @@
+package com.hhqj.player;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes ADTS AAC packets with MediaCodec and plays them through an AudioTrack.
+ * While the clock runs at normal speed the audio position drives it, otherwise
+ * audio that fell behind the clock is skipped so both stay in sync.
+ */
+class AudioPlayer {
+    interface PacketSource {
+        /**
+         * Copies the next packet into buffer.
+         *
+         * @return packet size, or 0 if none arrived within timeoutMs
+         */
+        int read(ByteBuffer buffer, int timeoutMs) throws IOException;
+
+        /** Pts in milliseconds of the packet last read. */
+        long pts();
+    }
+
+    interface ErrorListener {
+        void onError(String message);
+    }
+
+    private static final long SYNC_INTERVAL_NS = 500_000_000L;
+    private static final long MAX_DRIFT_US = 40_000;
+    private static final long MAX_LAG_US = 100_000;
+    private static final long FLUSH_TIMEOUT_MS = 500;
+
+    private final PacketSource mSource;
+    private final MediaClock mClock;
+    private final ErrorListener mErrorListener;
+    private MediaCodec mDecoder;
+    private AudioTrack mTrack;
+    private AudioThread mThread;
+    private volatile boolean mRunning;
+    private volatile CountDownLatch mFlush;
+
+    private int mSampleRate;
+    private int mFrameSize;
+    private long mWrittenFrames;
+    private long mWrittenEndPtsUs = -1;
+    private long mLastSyncNs;
+    private byte[] mPcmBuffer;
+
+    AudioPlayer(PacketSource source, MediaClock clock, ErrorListener errorListener) {
+        mSource = source;
+        mClock = clock;
+        mErrorListener = errorListener;
+    }
+
+    void start(int sampleRate, int channelCount) throws IOException {
+        MediaFormat format = MediaFormat.createAudioFormat("audio/mp4a-latm", sampleRate, channelCount);
+        format.setInteger(MediaFormat.KEY_IS_ADTS, 1);
+
+        mDecoder = MediaCodec.createDecoderByType("audio/mp4a-latm");
+        mDecoder.configure(format, null, null, 0);
+        mDecoder.start();
+
+        mRunning = true;
+        mThread = new AudioThread();
+        mThread.start();
+    }
+
+    void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+            }
+            mThread = null;
+        }
+
+        if (mDecoder != null) {
+            try {
+                mDecoder.stop();
+                mDecoder.release();
+            } catch (Exception e) {
+            }
+            mDecoder = null;
+        }
+
+        if (mTrack != null) {
+            try {
+                mTrack.stop();
+                mTrack.release();
+            } catch (Exception e) {
+            }
+            mTrack = null;
+        }
+    }
+
+    /**
+     * Drops the audio decoded or queued so far, for when the packets continue
+     * at another position. Waits until the audio thread did so.
+     */
+    void flush() {
+        if (!mRunning) return;
+        CountDownLatch flush = new CountDownLatch(1);
+        mFlush = flush;
+        try {
+            flush.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private class AudioThread extends Thread {
+        AudioThread() {
+            super("AudioThread");
+        }
+
+        @Override
+        public void run() {
+            try {
+                ByteBuffer[] inputBuffers = null;
+                ByteBuffer[] outputBuffers = null;
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                    inputBuffers = mDecoder.getInputBuffers();
+                    outputBuffers = mDecoder.getOutputBuffers();
+                }
+
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                int inIndex = -1;
+                while (mRunning) {
+                    CountDownLatch flush = mFlush;
+                    if (flush != null) {
+                        mFlush = null;
+                        mDecoder.flush();
+                        inIndex = -1;
+                        if (mTrack != null) {
+                            mTrack.pause();
+                            mTrack.flush();
+                            mTrack.play();
+                            mWrittenFrames = 0;
+                            mWrittenEndPtsUs = -1;
+                        }
+                        flush.countDown();
+                    }
+
+                    boolean queued = false;
+                    if (inIndex < 0) inIndex = mDecoder.dequeueInputBuffer(0);
+                    if (inIndex >= 0) {
+                        ByteBuffer inputBuffer = inputBuffers == null ? mDecoder.getInputBuffer(inIndex) : inputBuffers[inIndex];
+                        int size = mSource.read(inputBuffer, 10);
+                        if (size > 0) {
+                            long pts = mSource.pts();
+                            mDecoder.queueInputBuffer(inIndex, 0, size, pts < 0 ? 0 : pts * 1000, 0);
+                            inIndex = -1;
+                            queued = true;
+                        }
+                    }
+
+                    // Only poll when a packet went in; with no free input buffer or no packet to read,
+                    // block on the output so a full codec does not spin this thread.
+                    int outIndex = mDecoder.dequeueOutputBuffer(info, queued ? 0 : 10000);
+                    if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        createTrack(mDecoder.getOutputFormat());
+                    } else if (outIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                        outputBuffers = mDecoder.getOutputBuffers();
+                    } else if (outIndex >= 0) {
+                        ByteBuffer outputBuffer = outputBuffers == null ? mDecoder.getOutputBuffer(outIndex) : outputBuffers[outIndex];
+                        render(outputBuffer, info);
+                        mDecoder.releaseOutputBuffer(outIndex, false);
+                    }
+                }
+            } catch (Exception e) {
+                if (mRunning) mErrorListener.onError(e.getMessage());
+            }
+        }
+    }
+
+    private void createTrack(MediaFormat format) {
+        if (mTrack != null) {
+            mTrack.stop();
+            mTrack.release();
+        }
+
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        int channelMask = channelMask(channelCount);
+        mFrameSize = 2 * channelCount;
+        int minBufferSize = AudioTrack.getMinBufferSize(mSampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            throw new IllegalStateException("unsupported audio format: " + mSampleRate + " Hz, " + channelCount + " channels");
+        }
+        int bufferSize = 2 * minBufferSize;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            mTrack = new AudioTrack.Builder()
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_MEDIA)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_MOVIE)
+                            .build())
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                            .setSampleRate(mSampleRate)
+                            .setChannelMask(channelMask)
+                            .build())
+                    .setBufferSizeInBytes(bufferSize)
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                    .build();
+        } else {
+            mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, mSampleRate, channelMask,
+                    AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+        }
+        mWrittenFrames = 0;
+        mWrittenEndPtsUs = -1;
+        mTrack.play();
+    }
+
+    /**
+     * Output channel mask for the PCM of the AAC decoder, whose channel order
+     * matches the Android one. 0 for counts AudioTrack cannot play.
+     */
+    private static int channelMask(int channelCount) {
+        switch (channelCount) {
+            case 1:
+                return AudioFormat.CHANNEL_OUT_MONO;
+            case 2:
+                return AudioFormat.CHANNEL_OUT_STEREO;
+            case 3:
+                return AudioFormat.CHANNEL_OUT_STEREO | AudioFormat.CHANNEL_OUT_FRONT_CENTER;
+            case 4:
+                return AudioFormat.CHANNEL_OUT_QUAD;
+            case 5:
+                return AudioFormat.CHANNEL_OUT_QUAD | AudioFormat.CHANNEL_OUT_FRONT_CENTER;
+            case 6:
+                return AudioFormat.CHANNEL_OUT_5POINT1;
+            case 7:
+                return AudioFormat.CHANNEL_OUT_5POINT1 | AudioFormat.CHANNEL_OUT_BACK_CENTER;
+            case 8:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                        ? AudioFormat.CHANNEL_OUT_7POINT1_SURROUND : AudioFormat.CHANNEL_OUT_7POINT1;
+            default:
+                return 0;
+        }
+    }
+
+    private void render(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        if (mTrack == null || info.size <= 0) return;
+
+        long clockUs = mClock.positionUs();
+        if (mClock.getSpeed() != 1.0f && clockUs >= 0 && info.presentationTimeUs < clockUs - MAX_LAG_US) {
+            return;
+        }
+
+        buffer.position(info.offset);
+        buffer.limit(info.offset + info.size);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mTrack.write(buffer, info.size, AudioTrack.WRITE_BLOCKING);
+        } else {
+            if (mPcmBuffer == null || mPcmBuffer.length < info.size) mPcmBuffer = new byte[info.size];
+            buffer.get(mPcmBuffer, 0, info.size);
+            mTrack.write(mPcmBuffer, 0, info.size);
+        }
+
+        int frames = info.size / mFrameSize;
+        mWrittenFrames += frames;
+        mWrittenEndPtsUs = info.presentationTimeUs + frames * 1000000L / mSampleRate;
+        syncClock();
+    }
+
+    /**
+     * Re-anchors the clock on the audio position when they drifted apart.
+     */
+    private void syncClock() {
+        long now = System.nanoTime();
+        if (now - mLastSyncNs < SYNC_INTERVAL_NS || mClock.getSpeed() != 1.0f) return;
+        mLastSyncNs = now;
+
+        long pendingFrames = mWrittenFrames - (mTrack.getPlaybackHeadPosition() & 0xffffffffL);
+        long audioUs = mWrittenEndPtsUs - pendingFrames * 1000000L / mSampleRate;
+        long clockUs = mClock.positionUs();
+        if (clockUs < 0 || Math.abs(audioUs - clockUs) > MAX_DRIFT_US) {
+            mClock.syncTo(audioUs, now);
+        }
+    }
+}
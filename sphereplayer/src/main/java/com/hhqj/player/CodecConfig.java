@@ -0,0 +1,141 @@
+package com.hhqj.player;
+
+import android.media.MediaFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the codec extradata of a stream into the csd-0/csd-1 buffers
+ * MediaCodec expects, so the decoder is configured with the real parameter
+ * sets instead of waiting for them in-band.
+ */
+class CodecConfig {
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private CodecConfig() {}
+
+    /**
+     * Sets the csd buffers of format. Returns false and leaves format alone if
+     * the extradata is missing or not understood.
+     */
+    static boolean apply(MediaFormat format, String mime, byte[] extradata) {
+        if (extradata == null || extradata.length == 0) return false;
+
+        switch (mime) {
+            case "video/avc": {
+                byte[][] csd = avcParameterSets(extradata);
+                if (csd == null) return false;
+                format.setByteBuffer("csd-0", ByteBuffer.wrap(csd[0]));
+                format.setByteBuffer("csd-1", ByteBuffer.wrap(csd[1]));
+                return true;
+            }
+            case "video/hevc": {
+                byte[] csd = hevcParameterSets(extradata);
+                if (csd == null) return false;
+                format.setByteBuffer("csd-0", ByteBuffer.wrap(csd));
+                return true;
+            }
+            case "video/mp4v-es":
+            case "video/av01":
+                format.setByteBuffer("csd-0", ByteBuffer.wrap(extradata));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * SPS and PPS of avcC or Annex-B extradata as Annex-B, or null if either
+     * is missing or the extradata is truncated.
+     */
+    static byte[][] avcParameterSets(byte[] extradata) {
+        ByteArrayOutputStream sps = new ByteArrayOutputStream();
+        ByteArrayOutputStream pps = new ByteArrayOutputStream();
+
+        try {
+            if (extradata[0] == 1) {
+                // avcC: SPS and PPS each prefixed with a 16 bit length.
+                int offset = 5;
+                int count = extradata[offset++] & 0x1f;
+                for (int i = 0; i < count; ++i) offset = copyNal(extradata, offset, sps);
+                count = extradata[offset++] & 0xff;
+                for (int i = 0; i < count; ++i) offset = copyNal(extradata, offset, pps);
+            } else {
+                for (int start = nextNal(extradata, 0); start < extradata.length; ) {
+                    int end = nextStartCode(extradata, start);
+                    int type = extradata[start] & 0x1f;
+                    if (type == 7) writeNal(sps, extradata, start, end - start);
+                    else if (type == 8) writeNal(pps, extradata, start, end - start);
+                    start = nextNal(extradata, end);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+
+        if (sps.size() == 0 || pps.size() == 0) return null;
+        return new byte[][]{sps.toByteArray(), pps.toByteArray()};
+    }
+
+    /**
+     * VPS, SPS and PPS of hvcC extradata as Annex-B, Annex-B extradata as is,
+     * or null if the extradata is truncated.
+     */
+    static byte[] hevcParameterSets(byte[] extradata) {
+        ByteArrayOutputStream csd = new ByteArrayOutputStream();
+
+        try {
+            if (extradata[0] == 1 && extradata.length > 22) {
+                // hvcC: arrays of VPS, SPS and PPS, all of which go into csd-0.
+                int offset = 22;
+                int arrays = extradata[offset++] & 0xff;
+                for (int i = 0; i < arrays; ++i) {
+                    ++offset;
+                    int count = ((extradata[offset] & 0xff) << 8) | (extradata[offset + 1] & 0xff);
+                    offset += 2;
+                    for (int j = 0; j < count; ++j) offset = copyNal(extradata, offset, csd);
+                }
+            } else {
+                csd.write(extradata, 0, extradata.length);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+
+        if (csd.size() == 0) return null;
+        return csd.toByteArray();
+    }
+
+    /** Copies a NAL unit with a 16 bit length prefix as Annex-B, returns the offset after it. */
+    private static int copyNal(byte[] data, int offset, ByteArrayOutputStream out) {
+        int length = ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+        offset += 2;
+        if (offset + length > data.length) throw new IndexOutOfBoundsException();
+        writeNal(out, data, offset, length);
+        return offset + length;
+    }
+
+    private static void writeNal(ByteArrayOutputStream out, byte[] data, int offset, int length) {
+        out.write(START_CODE, 0, START_CODE.length);
+        out.write(data, offset, length);
+    }
+
+    /** Offset of the first NAL unit payload at or after from, or data.length. */
+    private static int nextNal(byte[] data, int from) {
+        for (int i = from; i + 2 < data.length; ++i) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) return i + 3;
+        }
+        return data.length;
+    }
+
+    /** Offset of the next start code at or after from, or data.length. */
+    private static int nextStartCode(byte[] data, int from) {
+        for (int i = from; i + 2 < data.length; ++i) {
+            if (data[i] == 0 && data[i + 1] == 0 && (data[i + 2] == 1 || (data[i + 2] == 0 && i + 3 < data.length && data[i + 3] == 1))) {
+                return i;
+            }
+        }
+        return data.length;
+    }
+}
@@ -0,0 +1,100 @@
+package com.hhqj.player;
+
+/**
+ * Maps presentation timestamps to System.nanoTime() render times.
+ * The clock anchors on the first frame and re-anchors after discontinuities,
+ * so a stalled or restarted stream never leaves every later frame late.
+ */
+class MediaClock {
+    /** Frames later than this are dropped instead of rendered. */
+    static final long LATE_THRESHOLD_NS = 40_000_000L;
+
+    /** Output buffers are released to the surface this much ahead of their render time. */
+    static final long RELEASE_AHEAD_NS = 30_000_000L;
+
+    private static final long MAX_DRIFT_NS = 1_000_000_000L;
+
+    private long mAnchorPtsUs = -1;
+    private long mResyncPtsUs = -1;
+    private long mAnchorNs;
+    private float mSpeed = 1.0f;
+
+    synchronized void reset() {
+        mAnchorPtsUs = -1;
+        mResyncPtsUs = -1;
+    }
+
+    /**
+     * Playback jumps forward to ptsUs. Frames before it are reported late and
+     * the clock re-anchors on the first frame at or after it.
+     */
+    synchronized void resyncAt(long ptsUs) {
+        mResyncPtsUs = ptsUs;
+    }
+
+    /**
+     * Render time of a frame, anchoring the clock on it if needed.
+     * Frames without a valid timestamp are due immediately.
+     */
+    synchronized long renderTimeNs(long ptsUs) {
+        long now = System.nanoTime();
+        if (ptsUs < 0) return now;
+
+        if (mResyncPtsUs >= 0) {
+            if (ptsUs < mResyncPtsUs) return now - 2 * LATE_THRESHOLD_NS;
+            mResyncPtsUs = -1;
+            anchor(ptsUs, now);
+            return now;
+        }
+
+        if (mAnchorPtsUs < 0) {
+            anchor(ptsUs, now);
+            return now;
+        }
+
+        long renderNs = mAnchorNs + (long) ((ptsUs - mAnchorPtsUs) * 1000L / mSpeed);
+        if (renderNs < now - MAX_DRIFT_NS || renderNs > now + MAX_DRIFT_NS) {
+            anchor(ptsUs, now);
+            return now;
+        }
+        return renderNs;
+    }
+
+    /** Media time that is being presented right now, or -1 before the first frame. */
+    synchronized long positionUs() {
+        if (mAnchorPtsUs < 0) return -1;
+        return mAnchorPtsUs + (long) ((System.nanoTime() - mAnchorNs) * mSpeed / 1000L);
+    }
+
+    /**
+     * Re-anchors the clock on an external master, e.g. the audio position.
+     * Ignored while a resync is pending.
+     */
+    synchronized void syncTo(long ptsUs, long nowNs) {
+        if (mResyncPtsUs >= 0) return;
+        anchor(ptsUs, nowNs);
+    }
+
+    synchronized void setSpeed(float speed) {
+        if (speed <= 0 || speed == mSpeed) return;
+
+        long now = System.nanoTime();
+        if (mAnchorPtsUs >= 0) {
+            anchor(mAnchorPtsUs + (long) ((now - mAnchorNs) * mSpeed / 1000L), now);
+        }
+        mSpeed = speed;
+    }
+
+    synchronized float getSpeed() {
+        return mSpeed;
+    }
+
+    static boolean isLate(long renderNs, long nowNs) {
+        return renderNs < nowNs - LATE_THRESHOLD_NS;
+    }
+
+    private void anchor(long ptsUs, long nowNs) {
+        mAnchorPtsUs = ptsUs;
+        mAnchorNs = nowNs;
+    }
+}
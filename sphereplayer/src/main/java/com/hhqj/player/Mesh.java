@@ -0,0 +1,370 @@
+package com.hhqj.player;
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Indexed triangle mesh the panorama is projected on. Vertices are interleaved
+ * position (x, y, z) and texture coordinate (s, t), and live in a VBO/IBO pair
+ * once uploaded, so drawing does not send any geometry over the bus.
+ * <p>
+ * Indices are grouped into tiles, each a contiguous index range covering one
+ * rectangle of the source frame. Tiles outside the view frustum can be culled
+ * and the visible ones are reported, so a tiled source only has to deliver those.
+ */
+class Mesh {
+    private static final int FLOATS_PER_VERTEX = 5;
+    private static final int STRIDE = FLOATS_PER_VERTEX * 4;
+
+    /** Face order in the 3x2 cube layouts: right, left, up / down, front, back. */
+    private static final float[][] CUBE_FACES = {
+            // center          s axis           t axis
+            {0, 0, -1,         1, 0, 0,         0, -1, 0},
+            {0, 0, 1,          -1, 0, 0,        0, -1, 0},
+            {0, 1, 0,          0, 0, -1,        -1, 0, 0},
+            {0, -1, 0,         0, 0, -1,        1, 0, 0},
+            {-1, 0, 0,         0, 0, -1,        0, -1, 0},
+            {1, 0, 0,          0, 0, 1,         0, -1, 0},
+    };
+
+    private final FloatBuffer mVertices;
+    private final Buffer mIndices;
+    private final int mIndexType;
+    private final int mIndexCount;
+    private final int[] mBuffers = new int[2];
+
+    private final int[] mTileOffsets;
+    private final float[] mTileBounds;
+    private final float[] mTileRegions;
+    private final boolean[] mTileVisible;
+    private final float[] mPlanes = new float[24];
+
+    /**
+     * @param tileOffsets start of every tile in indices followed by indices.length
+     */
+    private Mesh(float[] vertices, int[] indices, int[] tileOffsets) {
+        mVertices = ByteBuffer.allocateDirect(vertices.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer()
+                .put(vertices);
+        mVertices.position(0);
+
+        mIndexCount = indices.length;
+        if (vertices.length / FLOATS_PER_VERTEX <= 0x10000) {
+            mIndexType = GLES20.GL_UNSIGNED_SHORT;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(indices.length * 2).order(ByteOrder.nativeOrder());
+            for (int index : indices) buffer.putShort((short) index);
+            mIndices = buffer.position(0);
+        } else {
+            mIndexType = GLES20.GL_UNSIGNED_INT;
+            mIndices = ByteBuffer.allocateDirect(indices.length * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asIntBuffer()
+                    .put(indices)
+                    .position(0);
+        }
+
+        int tileCount = tileOffsets.length - 1;
+        mTileOffsets = tileOffsets;
+        mTileBounds = new float[tileCount * 4];
+        mTileRegions = new float[tileCount * 4];
+        mTileVisible = new boolean[tileCount];
+        for (int tile = 0; tile < tileCount; tile++) {
+            measureTile(vertices, indices, tile);
+            mTileVisible[tile] = true;
+        }
+    }
+
+    /**
+     * Equirectangular sphere split into rings of latitude and sectors of longitude.
+     */
+    static Mesh sphere(float radius, int rings, int sectors) {
+        return sphere(radius, rings, sectors, Math.min(rings, 4), Math.min(sectors, 8));
+    }
+
+    static Mesh sphere(float radius, int rings, int sectors, int tileRows, int tileColumns) {
+        float[] vertices = new float[(rings + 1) * (sectors + 1) * FLOATS_PER_VERTEX];
+        int v = 0;
+        for (int i = 0; i <= rings; i++) {
+            double theta = Math.PI * i / rings;
+            for (int j = 0; j <= sectors; j++) {
+                double phi = 2 * Math.PI * j / sectors;
+                vertices[v++] = (float) (radius * Math.sin(theta) * Math.cos(phi));
+                vertices[v++] = (float) (radius * Math.cos(theta));
+                vertices[v++] = (float) (radius * Math.sin(theta) * Math.sin(phi));
+                vertices[v++] = (float) j / sectors;
+                vertices[v++] = (float) i / rings;
+            }
+        }
+        int[] indices = new int[rings * sectors * 6];
+        int[] tileOffsets = new int[tileRows * tileColumns + 1];
+        int offset = 0;
+        for (int row = 0; row < tileRows; row++) {
+            for (int column = 0; column < tileColumns; column++) {
+                tileOffsets[row * tileColumns + column] = offset;
+                offset = gridIndices(sectors + 1, 0,
+                        row * rings / tileRows, (row + 1) * rings / tileRows,
+                        column * sectors / tileColumns, (column + 1) * sectors / tileColumns,
+                        indices, offset);
+            }
+        }
+        tileOffsets[tileRows * tileColumns] = offset;
+        return new Mesh(vertices, indices, tileOffsets);
+    }
+
+    /** Cube map in a 3x2 layout with linearly sampled faces. */
+    static Mesh cubeMap(float radius, int subdivisions) {
+        return cube(radius, subdivisions, false);
+    }
+
+    /**
+     * Equi-angular cube map in a 3x2 layout: texels are spread evenly over
+     * the viewing angle rather than over the face.
+     */
+    static Mesh equiAngularCubeMap(float radius, int subdivisions) {
+        return cube(radius, subdivisions, true);
+    }
+
+    /**
+     * Creates the buffer objects in the current GL context. Called again after
+     * the context was lost; the buffers of the old context are gone with it.
+     */
+    void upload() {
+        GLES20.glGenBuffers(2, mBuffers, 0);
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVertices.capacity() * 4, mVertices, GLES20.GL_STATIC_DRAW);
+
+        int indexSize = mIndexType == GLES20.GL_UNSIGNED_SHORT ? 2 : 4;
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mBuffers[1]);
+        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexCount * indexSize, mIndices, GLES20.GL_STATIC_DRAW);
+    }
+
+    /**
+     * Points the attributes at the uploaded buffers. The bindings stay in place
+     * until another mesh is bound.
+     */
+    void bind(int positionHandle, int texCoordHandle) {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[0]);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mBuffers[1]);
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, STRIDE, 0);
+        GLES20.glEnableVertexAttribArray(texCoordHandle);
+        GLES20.glVertexAttribPointer(texCoordHandle, 2, GLES20.GL_FLOAT, false, STRIDE, 12);
+    }
+
+    void draw() {
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, mIndexCount, mIndexType, 0);
+    }
+
+    /**
+     * Draws the tiles left by the last {@link #cull}, merging neighbouring
+     * tiles into a single call.
+     */
+    void drawVisible() {
+        int indexSize = mIndexType == GLES20.GL_UNSIGNED_SHORT ? 2 : 4;
+        int tileCount = mTileVisible.length;
+        for (int tile = 0; tile < tileCount; tile++) {
+            if (!mTileVisible[tile]) continue;
+            int first = tile;
+            while (tile + 1 < tileCount && mTileVisible[tile + 1]) tile++;
+            int start = mTileOffsets[first];
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, mTileOffsets[tile + 1] - start, mIndexType, start * indexSize);
+        }
+    }
+
+    /**
+     * Frustum-culls the tiles against a model-view-projection matrix.
+     *
+     * @return true if the set of visible tiles changed
+     */
+    boolean cull(float[] mvp) {
+        // Gribb/Hartmann: every plane is row 3 of the matrix plus or minus row 0, 1 or 2.
+        for (int i = 0; i < 6; i++) {
+            int row = i / 2;
+            float sign = i % 2 == 0 ? 1 : -1;
+            float a = mvp[3] + sign * mvp[row];
+            float b = mvp[7] + sign * mvp[4 + row];
+            float c = mvp[11] + sign * mvp[8 + row];
+            float d = mvp[15] + sign * mvp[12 + row];
+            float length = (float) Math.sqrt(a * a + b * b + c * c);
+            mPlanes[i * 4] = a / length;
+            mPlanes[i * 4 + 1] = b / length;
+            mPlanes[i * 4 + 2] = c / length;
+            mPlanes[i * 4 + 3] = d / length;
+        }
+
+        boolean changed = false;
+        for (int tile = 0; tile < mTileVisible.length; tile++) {
+            boolean visible = true;
+            for (int i = 0; i < 24 && visible; i += 4) {
+                float distance = mPlanes[i] * mTileBounds[tile * 4]
+                        + mPlanes[i + 1] * mTileBounds[tile * 4 + 1]
+                        + mPlanes[i + 2] * mTileBounds[tile * 4 + 2]
+                        + mPlanes[i + 3];
+                visible = distance >= -mTileBounds[tile * 4 + 3];
+            }
+            if (mTileVisible[tile] != visible) {
+                mTileVisible[tile] = visible;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /** Marks every tile visible again. */
+    void uncull() {
+        for (int tile = 0; tile < mTileVisible.length; tile++) mTileVisible[tile] = true;
+    }
+
+    int getTileCount() {
+        return mTileVisible.length;
+    }
+
+    /**
+     * Copies the visible tile numbers into tiles, which must hold
+     * {@link #getTileCount()} entries.
+     *
+     * @return number of visible tiles
+     */
+    int getVisibleTiles(int[] tiles) {
+        int count = 0;
+        for (int tile = 0; tile < mTileVisible.length; tile++) {
+            if (mTileVisible[tile]) tiles[count++] = tile;
+        }
+        return count;
+    }
+
+    /**
+     * Copies the texture rectangle of a tile as s0, t0, s1, t1.
+     */
+    void getTileRegion(int tile, float[] region, int offset) {
+        System.arraycopy(mTileRegions, tile * 4, region, offset, 4);
+    }
+
+    void release() {
+        GLES20.glDeleteBuffers(2, mBuffers, 0);
+        mBuffers[0] = 0;
+        mBuffers[1] = 0;
+    }
+
+    int getVertexCount() {
+        return mVertices.capacity() / FLOATS_PER_VERTEX;
+    }
+
+    int getIndexCount() {
+        return mIndexCount;
+    }
+
+    private static Mesh cube(float radius, int subdivisions, boolean equiAngular) {
+        int faceVertices = (subdivisions + 1) * (subdivisions + 1);
+        int faceIndices = subdivisions * subdivisions * 6;
+        float[] vertices = new float[CUBE_FACES.length * faceVertices * FLOATS_PER_VERTEX];
+        int[] indices = new int[CUBE_FACES.length * faceIndices];
+        int tilesPerEdge = Math.min(subdivisions, 2);
+        int[] tileOffsets = new int[CUBE_FACES.length * tilesPerEdge * tilesPerEdge + 1];
+        int tile = 0;
+        int offset = 0;
+
+        int v = 0;
+        for (int face = 0; face < CUBE_FACES.length; face++) {
+            float[] f = CUBE_FACES[face];
+            int column = face % 3;
+            int row = face / 3;
+            for (int i = 0; i <= subdivisions; i++) {
+                float b = 2.f * i / subdivisions - 1;
+                for (int j = 0; j <= subdivisions; j++) {
+                    float a = 2.f * j / subdivisions - 1;
+                    float x = f[0] + a * f[3] + b * f[6];
+                    float y = f[1] + a * f[4] + b * f[7];
+                    float z = f[2] + a * f[5] + b * f[8];
+                    float scale = radius / (float) Math.sqrt(x * x + y * y + z * z);
+                    vertices[v++] = x * scale;
+                    vertices[v++] = y * scale;
+                    vertices[v++] = z * scale;
+                    vertices[v++] = (column + faceCoordinate(a, equiAngular)) / 3;
+                    vertices[v++] = (row + faceCoordinate(b, equiAngular)) / 2;
+                }
+            }
+            for (int tileRow = 0; tileRow < tilesPerEdge; tileRow++) {
+                for (int tileColumn = 0; tileColumn < tilesPerEdge; tileColumn++) {
+                    tileOffsets[tile++] = offset;
+                    offset = gridIndices(subdivisions + 1, face * faceVertices,
+                            tileRow * subdivisions / tilesPerEdge, (tileRow + 1) * subdivisions / tilesPerEdge,
+                            tileColumn * subdivisions / tilesPerEdge, (tileColumn + 1) * subdivisions / tilesPerEdge,
+                            indices, offset);
+                }
+            }
+        }
+        tileOffsets[tile] = offset;
+        return new Mesh(vertices, indices, tileOffsets);
+    }
+
+    /** Maps a face position in [-1, 1] to a texture coordinate in [0, 1]. */
+    private static float faceCoordinate(float a, boolean equiAngular) {
+        if (equiAngular) return (float) (0.5 + 2 / Math.PI * Math.atan(a));
+        return (a + 1) / 2;
+    }
+
+    /**
+     * Triangulates the cells [rowStart, rowEnd) x [columnStart, columnEnd) of a
+     * vertex grid. Returns the offset behind the written indices.
+     */
+    private static int gridIndices(int stride, int base, int rowStart, int rowEnd,
+                                   int columnStart, int columnEnd, int[] indices, int offset) {
+        for (int i = rowStart; i < rowEnd; i++) {
+            for (int j = columnStart; j < columnEnd; j++) {
+                int topLeft = base + i * stride + j;
+                int bottomLeft = topLeft + stride;
+                indices[offset++] = bottomLeft + 1;
+                indices[offset++] = topLeft;
+                indices[offset++] = topLeft + 1;
+                indices[offset++] = bottomLeft + 1;
+                indices[offset++] = bottomLeft;
+                indices[offset++] = topLeft;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Computes the bounding sphere and texture rectangle of a tile from the
+     * vertices it references.
+     */
+    private void measureTile(float[] vertices, int[] indices, int tile) {
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = mTileOffsets[tile]; i < mTileOffsets[tile + 1]; i++) {
+            int v = indices[i] * FLOATS_PER_VERTEX;
+            for (int k = 0; k < FLOATS_PER_VERTEX; k++) {
+                min[k] = Math.min(min[k], vertices[v + k]);
+                max[k] = Math.max(max[k], vertices[v + k]);
+            }
+        }
+
+        float cx = (min[0] + max[0]) / 2;
+        float cy = (min[1] + max[1]) / 2;
+        float cz = (min[2] + max[2]) / 2;
+        float radius = 0;
+        for (int i = mTileOffsets[tile]; i < mTileOffsets[tile + 1]; i++) {
+            int v = indices[i] * FLOATS_PER_VERTEX;
+            float dx = vertices[v] - cx;
+            float dy = vertices[v + 1] - cy;
+            float dz = vertices[v + 2] - cz;
+            radius = Math.max(radius, dx * dx + dy * dy + dz * dz);
+        }
+        mTileBounds[tile * 4] = cx;
+        mTileBounds[tile * 4 + 1] = cy;
+        mTileBounds[tile * 4 + 2] = cz;
+        mTileBounds[tile * 4 + 3] = (float) Math.sqrt(radius);
+
+        mTileRegions[tile * 4] = min[3];
+        mTileRegions[tile * 4 + 1] = min[4];
+        mTileRegions[tile * 4 + 2] = max[3];
+        mTileRegions[tile * 4 + 3] = max[4];
+    }
+}
@@ -0,0 +1,135 @@
+package com.hhqj.player;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.opengl.Matrix;
+import android.view.Surface;
+
+/**
+ * Turns rotation vector events into the camera orientation of the renderer.
+ * The fused quaternion does not drift like integrated gyro rates do, and each
+ * event costs one matrix build with no allocation or Resources lookup.
+ * <p>
+ * A sample is the 4x4 view rotation followed by the angular velocity (x, y, z
+ * in rad/s, view space) derived from the previous sample, which lets the
+ * renderer extrapolate it to the time the frame is shown.
+ */
+class OrientationEngine implements SensorEventListener {
+    static final int SAMPLE_SIZE = 19;
+
+    private final SphereSurfaceView mView;
+    private final OrientationSlot mSlot;
+    private final float[] mRotation = new float[16];
+    private final float[] mRemapped = new float[16];
+    private final float[] mSphereToWorld = new float[16];
+    private final float[] mPrevious = new float[16];
+    private long mPreviousTimestamp;
+    private SensorManager mSensorManager;
+    private Sensor mSensor;
+
+    OrientationEngine(SphereSurfaceView view) {
+        mView = view;
+        mSlot = view.getSphereRender().getOrientationSlot();
+        // The sphere is y-up, the sensor world frame is z-up.
+        Matrix.setRotateM(mSphereToWorld, 0, 90, 1, 0, 0);
+    }
+
+    /**
+     * Registers for TYPE_GAME_ROTATION_VECTOR, or TYPE_ROTATION_VECTOR where
+     * it is missing. Returns false if the device has neither.
+     */
+    boolean start(Context context, int periodUs) {
+        stop();
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+        if (mSensor == null) mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        if (mSensor == null) return false;
+
+        mSensorManager.registerListener(this, mSensor, periodUs, 0);
+        return true;
+    }
+
+    void stop() {
+        if (mSensor != null) {
+            mSensorManager.unregisterListener(this, mSensor);
+            mSensor = null;
+            mPreviousTimestamp = 0;
+            mView.getSphereRender().setOrientationEnabled(false);
+            mView.scheduleRender();
+        }
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        SensorManager.getRotationMatrixFromVector(mRotation, event.values);
+
+        // Read as a column-major GL matrix the row-major result is its
+        // transpose, i.e. the world to device rotation the view needs.
+        float[] rotation = mRotation;
+        switch (mView.getDisplayRotation()) {
+            case Surface.ROTATION_90:
+                SensorManager.remapCoordinateSystem(mRotation, SensorManager.AXIS_Y, SensorManager.AXIS_MINUS_X, mRemapped);
+                rotation = mRemapped;
+                break;
+            case Surface.ROTATION_180:
+                SensorManager.remapCoordinateSystem(mRotation, SensorManager.AXIS_MINUS_X, SensorManager.AXIS_MINUS_Y, mRemapped);
+                rotation = mRemapped;
+                break;
+            case Surface.ROTATION_270:
+                SensorManager.remapCoordinateSystem(mRotation, SensorManager.AXIS_MINUS_Y, SensorManager.AXIS_X, mRemapped);
+                rotation = mRemapped;
+                break;
+        }
+
+        float[] sample = mSlot.back();
+        Matrix.multiplyMM(sample, 0, rotation, 0, mSphereToWorld, 0);
+        angularVelocity(sample, event.timestamp);
+        System.arraycopy(sample, 0, mPrevious, 0, 16);
+        mPreviousTimestamp = event.timestamp;
+        mSlot.publish(event.timestamp);
+        mView.getSphereRender().setOrientationEnabled(true);
+        mView.scheduleRender();
+    }
+
+    /**
+     * Stores the rotation from the previous to this sample, D = V * Vprev^T, as
+     * axis times angle per second.
+     */
+    private void angularVelocity(float[] sample, long timestamp) {
+        sample[16] = sample[17] = sample[18] = 0;
+        if (mPreviousTimestamp == 0 || timestamp <= mPreviousTimestamp) return;
+
+        float d00 = 0, d11 = 0, d22 = 0, d01 = 0, d10 = 0, d02 = 0, d20 = 0, d12 = 0, d21 = 0;
+        for (int k = 0; k < 3; k++) {
+            // Column-major: element (row, column) lives at column * 4 + row.
+            float a0 = sample[k * 4], a1 = sample[k * 4 + 1], a2 = sample[k * 4 + 2];
+            float b0 = mPrevious[k * 4], b1 = mPrevious[k * 4 + 1], b2 = mPrevious[k * 4 + 2];
+            d00 += a0 * b0;
+            d11 += a1 * b1;
+            d22 += a2 * b2;
+            d01 += a0 * b1;
+            d10 += a1 * b0;
+            d02 += a0 * b2;
+            d20 += a2 * b0;
+            d12 += a1 * b2;
+            d21 += a2 * b1;
+        }
+
+        double cos = Math.max(-1, Math.min(1, (d00 + d11 + d22 - 1) / 2));
+        double angle = Math.acos(cos);
+        double sin = Math.sin(angle);
+        if (sin < 1e-6) return;
+
+        double scale = angle / (2 * sin) / ((timestamp - mPreviousTimestamp) / 1e9);
+        sample[16] = (float) ((d21 - d12) * scale);
+        sample[17] = (float) ((d02 - d20) * scale);
+        sample[18] = (float) ((d10 - d01) * scale);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+}
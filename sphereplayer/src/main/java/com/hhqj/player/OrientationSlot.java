@@ -0,0 +1,51 @@
+package com.hhqj.player;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the newest orientation sample from a single writer thread to a single
+ * reader thread without locks or allocations. Three buffers rotate between
+ * writer, reader and the hand-over slot, so neither side ever waits.
+ */
+class OrientationSlot {
+    private static final int FRESH = 4;
+
+    private final float[][] mValues;
+    private final long[] mTimestamps = new long[3];
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    private int mBack = 0;
+    private int mFront = 2;
+
+    OrientationSlot(int size) {
+        mValues = new float[3][size];
+    }
+
+    /** Buffer the writer fills before {@link #publish}. */
+    float[] back() {
+        return mValues[mBack];
+    }
+
+    void publish(long timestampNs) {
+        mTimestamps[mBack] = timestampNs;
+        mBack = mMiddle.getAndSet(mBack | FRESH) & 3;
+    }
+
+    /**
+     * Makes the newest published sample the front one.
+     *
+     * @return false if nothing was published since the last latch
+     */
+    boolean latch() {
+        if ((mMiddle.get() & FRESH) == 0) return false;
+        mFront = mMiddle.getAndSet(mFront) & 3;
+        return true;
+    }
+
+    float[] front() {
+        return mValues[mFront];
+    }
+
+    long frontTimestamp() {
+        return mTimestamps[mFront];
+    }
+}
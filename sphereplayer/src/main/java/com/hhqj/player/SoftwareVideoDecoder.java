@@ -0,0 +1,97 @@
+package com.hhqj.player;
+
+import java.io.IOException;
+
+/**
+ * Presents frames decoded by the native FFmpeg decoder for streams MediaCodec
+ * cannot play. Each frame is converted into the surface buffer ahead of its
+ * render time and posted when the clock reaches it.
+ */
+class SoftwareVideoDecoder {
+    interface FrameSource {
+        /**
+         * Waits for the next decoded frame and makes it current.
+         *
+         * @return 1 if a frame is current, 0 if none arrived within timeoutMs
+         */
+        int dequeue(int timeoutMs) throws IOException;
+
+        /** Pts in microseconds of the current frame, or -1 if unknown. */
+        long pts();
+
+        /** Converts the current frame into a surface buffer without showing it. */
+        void draw() throws IOException;
+
+        /** Shows the buffer filled by draw(). */
+        void post();
+    }
+
+    interface Listener {
+        /** Called for every frame before it is scheduled. */
+        void onFrame(long ptsUs);
+
+        void onLateFrame();
+
+        void onError(String message);
+    }
+
+    private final FrameSource mSource;
+    private final MediaClock mClock;
+    private final Listener mListener;
+    private DecoderThread mThread;
+    private volatile boolean mRunning;
+
+    SoftwareVideoDecoder(FrameSource source, MediaClock clock, Listener listener) {
+        mSource = source;
+        mClock = clock;
+        mListener = listener;
+    }
+
+    void start() {
+        mRunning = true;
+        mThread = new DecoderThread();
+        mThread.start();
+    }
+
+    void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+            }
+            mThread = null;
+        }
+    }
+
+    private class DecoderThread extends Thread {
+        DecoderThread() {
+            super("SoftwareVideoThread");
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (mRunning) {
+                    if (mSource.dequeue(10) == 0) continue;
+
+                    long pts = mSource.pts();
+                    mListener.onFrame(pts);
+                    long renderNs = mClock.renderTimeNs(pts);
+                    if (MediaClock.isLate(renderNs, System.nanoTime())) {
+                        mListener.onLateFrame();
+                        continue;
+                    }
+
+                    mSource.draw();
+                    long waitNs = renderNs - System.nanoTime();
+                    if (waitNs > 0) Thread.sleep(waitNs / 1000000L, (int) (waitNs % 1000000L));
+                    mSource.post();
+                }
+            } catch (InterruptedException e) {
+            } catch (Exception e) {
+                if (mRunning) mListener.onError(e.getMessage());
+            }
+        }
+    }
+}
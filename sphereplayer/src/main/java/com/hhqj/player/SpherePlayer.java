@@ -2,30 +2,100 @@ package com.hhqj.player;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.view.MotionEvent;
+import android.view.Surface;
 import android.view.View;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class SpherePlayer  {
     private final SphereSurfaceView mSphereSurfaceView;
-    private final ArrayBlockingQueue<byte[]> mVideoFrameQueue = new ArrayBlockingQueue<>(100);
+    private final ArrayBlockingQueue<VideoPacket> mVideoFrameQueue = new ArrayBlockingQueue<>(100);
+    private final MediaClock mMediaClock = new MediaClock();
+    private long mVideoPacketPTS;
+    private volatile long mLateFrameCount;
+    private volatile boolean mLiveMode = false;
+    private volatile int mTargetLatencyMs = 1000;
+    private volatile long mLiveLatencyMs = -1;
+    private final AtomicBoolean mSkipRequested = new AtomicBoolean(false);
+    private long mLastSkipTime;
     private volatile boolean mRunnable = false;
+    private volatile boolean mDirectVideoEnable = true;
+    private volatile int mCallbackBatchSize = 1;
+    private volatile int mBackpressurePolicy = BACKPRESSURE_DROP_OLDEST_UNTIL_KEY_FRAME;
+    private volatile boolean mAsyncCodecEnable = true;
+    private volatile boolean mAudioEnable = true;
+    private volatile int mDecoderBackend = DECODER_AUTO;
+    private volatile int mActiveDecoderBackend = DECODER_AUTO;
+    private volatile int mSoftwareThreadType = THREAD_FRAME | THREAD_SLICE;
+    private volatile int mSoftwareThreadCount = 0;
+    private volatile boolean mSoftwareHardwareEnable = false;
+    private volatile int mProbeSize = 0;
+    private volatile int mAnalyzeDurationMs = 0;
+    private volatile int mInputBufferSize = 0;
+    private volatile boolean mNoBuffer = false;
+    private volatile boolean mFlushPackets = false;
+    private volatile boolean mSkipStreamInfo = false;
+    private volatile int mOpenTimeoutMs = 10000;
+    private volatile int mReadTimeoutMs = 10000;
+    private long mPlayStartNs;
+    private volatile long mOpenStartNs;
+    private volatile long mFirstFrameNs;
+    private volatile boolean mFastStartEnable = false;
+    private boolean mFastStart;
+    private CodecPrepareThread mCodecPrepareThread;
+    private Thread mAudioStartThread;
+    private volatile boolean mSessionPoolEnable = false;
+    private final SessionPool mSessionPool = new SessionPool();
+    private String mVideoMime;
+    private int mVideoWidth;
+    private int mVideoHeight;
+    private byte[] mVideoExtradata;
+    private volatile boolean mReconnectEnable = false;
+    private volatile int mReconnectMaxAttempts = 0;
+    private volatile boolean mReconnecting;
+    private volatile long mReconnectCount;
+    private volatile long mReconnectFailures;
+    private volatile long mLastOutageMs;
+    private volatile long mTotalOutageMs;
+    private final Random mRandom = new Random();
+    private volatile File mTimeShiftFile;
+    private volatile long mTimeShiftCapacity;
+    private volatile boolean mTimeShiftActive;
+    private volatile boolean mTimeShifted;
+    private final Object mSeekLock = new Object();
+    private final ReentrantLock mCodecLock = new ReentrantLock();
+    private volatile CountDownLatch mVideoFlush;
+    private SoftwareVideoDecoder mSoftwareVideoDecoder;
+    private Surface mSoftwareSurface;
+    private AudioPlayer mAudioPlayer;
+    private boolean mAsyncCodec;
+    private boolean mDirectVideo;
     private  AtomicBoolean mIsPlaying = new AtomicBoolean(false);
     private final AtomicBoolean gyroFlag= new AtomicBoolean(true);
     private final AtomicBoolean gyroEnable = new AtomicBoolean(false);
@@ -33,16 +103,17 @@ public class SpherePlayer  {
     private VideoBufferThread mVideoBufferThread;
     private VideoDecoderThread mVideoDecoderThread;
     private MediaCodec mVideoDecoder;
-    private Demuxer mDemuxer;
+    private HandlerThread mVideoCodecThread;
+    private Handler mVideoCodecHandler;
+    private VideoCodecCallback mVideoCodecCallback;
+    private volatile Demuxer mDemuxer;
     private Context mContext;
     private String mUrl;
     private float mStartX;
     private float mStartY;
     private float mLastDistance;
-    private float mPreviousXs, mPreviousYs;
-    private float mTimeStamp;
-    private final float[] mAngle = new float[3];
-    private static final double NS2S = 1.0 / 1000000000.0;
+    private final OrientationEngine mOrientationEngine;
+    private volatile int mSensorPeriodUs = SensorManager.SENSOR_DELAY_GAME;
 
     private ReentrantLock mEventListenerLock = new ReentrantLock();
     private EventListener mEventListener = (type, message) -> {
@@ -50,10 +121,33 @@ public class SpherePlayer  {
 
     static final public int ERROR_SOURCE = 0;
     static final public int ERROR_CODEC = 1;
+    /** Audio failed and was switched off, video keeps playing. */
+    static final public int ERROR_AUDIO = 2;
+    /** The recording stopped by stop() could not be written, playback was not affected. */
+    static final public int ERROR_RECORDING = 3;
+    /** The time-shift buffer could not be created, playback goes on without it. */
+    static final public int ERROR_TIME_SHIFT = 4;
+
+    static final public int BACKPRESSURE_BLOCK = 0;
+    static final public int BACKPRESSURE_DROP_OLDEST_UNTIL_KEY_FRAME = 1;
+    static final public int BACKPRESSURE_DROP_NON_REFERENCE = 2;
+
+    static final public int DECODER_AUTO = 0;
+    static final public int DECODER_MEDIACODEC = 1;
+    static final public int DECODER_SOFTWARE = 2;
+
+    static final public int THREAD_FRAME = 1;
+    static final public int THREAD_SLICE = 2;
+
+    /** Playback continues exactly at the seek position, frames before it are decoded but not shown. */
+    static final public int SEEK_ACCURATE = 0;
+    /** Playback continues at the key frame before the seek position, which is faster. */
+    static final public int SEEK_KEY_FRAME = 1;
 
 
     public SpherePlayer(@NonNull SphereSurfaceView sphereSurfaceView) {
         mSphereSurfaceView = sphereSurfaceView;
+        mOrientationEngine = new OrientationEngine(sphereSurfaceView);
     }
 
     public void setEventListener(EventListener eventListener){
@@ -66,6 +160,24 @@ public class SpherePlayer  {
 
     public interface EventListener {
         void onError(int type, String message);
+
+        /**
+         * Called once per session when the first frame is decoded, on the
+         * decoder thread, so it should return quickly.
+         */
+        default void onStartup(StartupTimings timings) {
+        }
+
+        /**
+         * Called on the demux thread before each attempt to reopen a live
+         * input that failed, see setAutoReconnect().
+         */
+        default void onReconnecting(int attempt, String reason) {
+        }
+
+        /** The input is back after being gone for outageMs. */
+        default void onReconnected(long outageMs) {
+        }
     }
 
 
@@ -74,15 +186,37 @@ public class SpherePlayer  {
         mIsPlaying.set(true);
         mRunnable = true;
         mUrl = url;
-        mDemuxer = new Demuxer();
-        if(!initMediaCodec()) return;
+        mDirectVideo = mDirectVideoEnable;
+        mAsyncCodec = mAsyncCodecEnable && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        mDemuxer = mSessionPool.takeDemuxer();
+        mMediaClock.reset();
+        mLateFrameCount = 0;
+        mLiveLatencyMs = -1;
+        mSkipRequested.set(false);
+        mTimeShiftActive = false;
+        mTimeShifted = false;
+        mReconnecting = false;
+        mReconnectCount = 0;
+        mReconnectFailures = 0;
+        mLastOutageMs = 0;
+        mTotalOutageMs = 0;
+        mVideoFlush = null;
+        mPlayStartNs = System.nanoTime();
+        mOpenStartNs = 0;
+        mFirstFrameNs = 0;
+        mFastStart = mFastStartEnable;
+        mActiveDecoderBackend = DECODER_AUTO;
+        mCodecPrepareThread = null;
+        mAudioStartThread = null;
+        if (mFastStart && mDecoderBackend != DECODER_SOFTWARE && !mSessionPool.hasCodec(FAST_START_MIME)) {
+            mCodecPrepareThread = new CodecPrepareThread(FAST_START_MIME);
+            mCodecPrepareThread.start();
+        }
+        mVideoBufferThread = null;
+        mVideoDecoderThread = null;
         setTouchEvent();
         mPollRTMPFrameThread = new PollRTMPFrameThread();
-        mVideoBufferThread = new VideoBufferThread();
-        mVideoDecoderThread = new VideoDecoderThread();
         mPollRTMPFrameThread.start();
-        mVideoBufferThread.start();
-        mVideoDecoderThread.start();
     }
 
 
@@ -99,51 +233,716 @@ public class SpherePlayer  {
         return  mIsPlaying.get();
     }
 
-    private final SensorEventListener mSensorListener = new SensorEventListener() {
+    /**
+     * Packets stay in a native ring and are copied from there into the
+     * MediaCodec input buffers, instead of crossing JNI as byte[] and being
+     * copied again from Java. The demuxer still copies each packet into the
+     * ring once, its output buffer is reused for the next packet.
+     * Takes effect on the next play().
+     */
+    public void setDirectVideoEnable(boolean enable){
+        mDirectVideoEnable = enable;
+    }
 
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            if(gyroEnable.get()){
-                if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
-                    if (mTimeStamp != 0) {
-                        final double dT = (event.timestamp - mTimeStamp) * NS2S;
-                        mAngle[0] += event.values[0] * dT;
-                        mAngle[1] += event.values[1] * dT;
-                        float angleX = (float) Math.toDegrees(mAngle[0]);
-                        float angleY = (float) Math.toDegrees(mAngle[1]);
-                        float dx = angleX - mPreviousXs;
-                        float dy = angleY - mPreviousYs;
-                        if(mContext.getResources().getConfiguration().orientation==1){
-                            mSphereSurfaceView.getSphereRender().rotateX(dx);
-                            mSphereSurfaceView.getSphereRender().rotateY(-dy);
-                        }
-                        if(mContext.getResources().getConfiguration().orientation==2){
-                            mSphereSurfaceView.getSphereRender().rotateX(-dy);
-                            mSphereSurfaceView.getSphereRender().rotateY(-dx);
-                        }
-                        mSphereSurfaceView.requestRender();
+    public boolean isDirectVideoEnable(){
+        return mDirectVideoEnable;
+    }
+
+    /**
+     * Number of packets the native demuxer hands to Java per upcall.
+     * Batching trades up to size - 1 packets of latency for fewer JNI transitions.
+     * A partial batch is delivered when the input ends or fails, and dropped on seek.
+     * Takes effect on the next play().
+     */
+    public void setCallbackBatchSize(int size){
+        mCallbackBatchSize = Math.max(1, size);
+    }
+
+    public int getCallbackBatchSize(){
+        return mCallbackBatchSize;
+    }
+
+    /**
+     * What the native packet ring does when the decoder falls behind, one of
+     * BACKPRESSURE_BLOCK, BACKPRESSURE_DROP_OLDEST_UNTIL_KEY_FRAME or
+     * BACKPRESSURE_DROP_NON_REFERENCE. Only used with direct video enabled.
+     * Takes effect on the next play().
+     */
+    public void setBackpressurePolicy(int policy){
+        mBackpressurePolicy = policy;
+    }
+
+    public int getBackpressurePolicy(){
+        return mBackpressurePolicy;
+    }
+
+    /**
+     * Drives MediaCodec from its callbacks on a dedicated HandlerThread instead of
+     * the polling buffer and decoder threads. Needs Android M, older releases
+     * always use the polling threads. Takes effect on the next play().
+     */
+    public void setAsyncCodecEnable(boolean enable){
+        mAsyncCodecEnable = enable;
+    }
+
+    public boolean isAsyncCodecEnable(){
+        return mAsyncCodecEnable;
+    }
+
+    /**
+     * Plays the AAC audio track of the stream, synchronized with the video.
+     * Needs direct video enabled. Takes effect on the next play().
+     */
+    public void setAudioEnable(boolean enable){
+        mAudioEnable = enable;
+    }
+
+    public boolean isAudioEnable(){
+        return mAudioEnable;
+    }
+
+    /**
+     * Keeps the video decoder and the native demuxer of a stopped session for
+     * the next play(), which makes switching between streams much faster.
+     * A decoder for the same codec is flushed and reused as is when the
+     * stream format did not change and reconfigured otherwise.
+     * Call release() once the player is no longer needed.
+     */
+    public void setSessionPoolEnable(boolean enable){
+        mSessionPoolEnable = enable;
+        if(!enable && !mIsPlaying.get()) mSessionPool.clear();
+    }
+
+    public boolean isSessionPoolEnable(){
+        return mSessionPoolEnable;
+    }
+
+    /**
+     * Stops playback and frees the decoder and demuxers kept by the session pool.
+     */
+    public void release(){
+        stop();
+        mSessionPool.clear();
+    }
+
+    /**
+     * Shortens the time to the first frame. The AVC decoder is created while
+     * the stream is still being probed, the video pipeline starts before
+     * audio and the decoder is asked for low latency output where supported.
+     * Takes effect on the next play().
+     */
+    public void setFastStartEnable(boolean enable){
+        mFastStartEnable = enable;
+    }
+
+    public boolean isFastStartEnable(){
+        return mFastStartEnable;
+    }
+
+    /**
+     * Which decoder plays the video, one of DECODER_AUTO, DECODER_MEDIACODEC or
+     * DECODER_SOFTWARE. DECODER_AUTO uses MediaCodec when the device has a
+     * decoder for the codec and size of the stream and FFmpeg otherwise.
+     * Takes effect on the next play().
+     */
+    public void setDecoderBackend(int backend){
+        mDecoderBackend = backend;
+    }
+
+    public int getDecoderBackend(){
+        return mDecoderBackend;
+    }
+
+    /**
+     * Decoder chosen for the current session, DECODER_MEDIACODEC or
+     * DECODER_SOFTWARE, or DECODER_AUTO while the stream is still being opened.
+     */
+    public int getActiveDecoderBackend(){
+        return mActiveDecoderBackend;
+    }
+
+    /**
+     * How the software decoder uses threads. type is a combination of
+     * THREAD_FRAME and THREAD_SLICE, count 0 starts one thread per big core.
+     * Frame threading delays the video by one frame per thread, live streams
+     * that must stay close to the source may prefer THREAD_SLICE alone.
+     * Takes effect on the next play().
+     */
+    public void setSoftwareDecoderThreading(int type, int count){
+        mSoftwareThreadType = type;
+        mSoftwareThreadCount = Math.max(0, count);
+    }
+
+    /**
+     * Lets the FFmpeg decoder of DECODER_SOFTWARE try FFmpeg's hardware
+     * decoders first, e.g. its MediaCodec wrapper, and decode on the CPU only
+     * if none of them opens. Takes effect on the next play().
+     */
+    public void setSoftwareHardwareDecoding(boolean enable){
+        mSoftwareHardwareEnable = enable;
+    }
+
+    /**
+     * What the FFmpeg decoder of the current session runs on, "software" or a
+     * hardware device type such as "mediacodec", or null when it is not
+     * decoding.
+     */
+    public String getSoftwareDecoderName(){
+        Demuxer demuxer = mDemuxer;
+        if(demuxer == null || mActiveDecoderBackend != DECODER_SOFTWARE) return null;
+        return demuxer.getSoftwareDecoderName();
+    }
+
+    /**
+     * Moving average of the time the software decoder spends on one frame,
+     * in microseconds, or -1 when it is not decoding.
+     */
+    public long getSoftwareDecodeTimeUs(){
+        Demuxer demuxer = mDemuxer;
+        if(demuxer == null || mActiveDecoderBackend != DECODER_SOFTWARE) return -1;
+
+        long[] values = new long[2];
+        demuxer.getDecodeTime(values);
+        return values[1];
+    }
+
+    /**
+     * Reopens a live input whose connection dropped instead of stopping with
+     * ERROR_SOURCE. Attempts back off exponentially with jitter. The decoders
+     * and the surface are kept meanwhile, so the last frame stays on screen.
+     * Files and VOD streams still end at their end.
+     *
+     * @param maxAttempts attempts per outage before giving up, 0 for no limit
+     */
+    public void setAutoReconnect(boolean enable, int maxAttempts){
+        mReconnectEnable = enable;
+        mReconnectMaxAttempts = maxAttempts;
+    }
+
+    public boolean isAutoReconnect(){
+        return mReconnectEnable;
+    }
+
+    /**
+     * Whether the input is being reopened right now.
+     */
+    public boolean isReconnecting(){
+        return mReconnecting;
+    }
+
+    public ReconnectStatistics getReconnectStatistics(){
+        return new ReconnectStatistics(mReconnectCount, mReconnectFailures, mLastOutageMs, mTotalOutageMs);
+    }
 
-                        mPreviousYs = angleY;
-                        mPreviousXs = angleX;
+    /**
+     * Reconnects of the current session.
+     */
+    public static class ReconnectStatistics {
+        /** Outages recovered from. */
+        public final long count;
+        /** Attempts that failed. */
+        public final long failedAttempts;
+        public final long lastOutageMs;
+        public final long totalOutageMs;
+
+        ReconnectStatistics(long count, long failedAttempts, long lastOutageMs, long totalOutageMs){
+            this.count = count;
+            this.failedAttempts = failedAttempts;
+            this.lastOutageMs = lastOutageMs;
+            this.totalOutageMs = totalOutageMs;
+        }
+    }
+
+    private static final long RECONNECT_INITIAL_DELAY_MS = 250;
+    private static final long RECONNECT_MAX_DELAY_MS = 8000;
+
+    /**
+     * Reopens the input after flush() failed. Runs on the poll thread.
+     *
+     * @return false if reconnecting is off, the input is not live or every
+     * attempt failed
+     */
+    private boolean reconnect(String reason){
+        if(!mReconnectEnable) return false;
+
+        long[] duration = new long[3];
+        mDemuxer.getDuration(duration);
+        if(duration[2] != 0) return false;
+
+        long start = SystemClock.elapsedRealtime();
+        long delayMs = RECONNECT_INITIAL_DELAY_MS;
+        int maxAttempts = mReconnectMaxAttempts;
+        mReconnecting = true;
+        try {
+            for(int attempt = 1; mRunnable && (maxAttempts <= 0 || attempt <= maxAttempts); ++attempt){
+                notifyReconnecting(attempt, reason);
+
+                // Half of the delay is random, so players that lost the same
+                // source do not all come back at once.
+                long sleepMs = delayMs / 2 + (long) (mRandom.nextDouble() * (delayMs / 2));
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                if(!mRunnable) return false;
+
+                boolean recording = mDemuxer.isRecording();
+                try {
+                    mDemuxer.reconnect(mUrl);
+                } catch (IOException e) {
+                    ++mReconnectFailures;
+                    reason = e.getMessage();
+                    delayMs = Math.min(2 * delayMs, RECONNECT_MAX_DELAY_MS);
+                    continue;
+                }
+                // The recording was finished if the new streams do not fit it.
+                if(recording && !mDemuxer.isRecording()){
+                    try {
+                        mDemuxer.stopRecording();
+                    }catch (IOException e){
+                        notifyError(ERROR_RECORDING, e.getMessage());
                     }
-                    mTimeStamp = event.timestamp;
                 }
+
+                long outageMs = SystemClock.elapsedRealtime() - start;
+                ++mReconnectCount;
+                mLastOutageMs = outageMs;
+                mTotalOutageMs += outageMs;
+                // The new connection may start its timestamps anywhere.
+                mMediaClock.reset();
+                notifyReconnected(outageMs);
+                return true;
             }
+            return false;
+        } finally {
+            mReconnecting = false;
         }
+    }
 
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    private void notifyReconnecting(int attempt, String reason) {
+        EventListener listener;
+
+        mEventListenerLock.lock();
+        listener = mEventListener;
+        mEventListenerLock.unlock();
+
+        listener.onReconnecting(attempt, reason);
+    }
+
+    private void notifyReconnected(long outageMs) {
+        EventListener listener;
+
+        mEventListenerLock.lock();
+        listener = mEventListener;
+        mEventListenerLock.unlock();
+
+        listener.onReconnected(outageMs);
+    }
+
+    /**
+     * Keeps live streams close to targetLatencyMs behind the source. Playback
+     * runs slightly faster while more than the target is buffered and skips
+     * ahead to the newest keyframe when more than twice the target is.
+     * Skipping needs direct video enabled and MediaCodec decoding.
+     */
+    public void setLiveMode(boolean enable, int targetLatencyMs){
+        mTargetLatencyMs = Math.max(1, targetLatencyMs);
+        mLiveMode = enable;
+        if(!enable) mMediaClock.setSpeed(1.0f);
+    }
+
+    public boolean isLiveMode(){
+        return mLiveMode;
+    }
+
+    /**
+     * How far the frame on screen trails the newest packet received from the
+     * source, in milliseconds, or -1 while unknown. Only updated in live mode.
+     */
+    public long getLiveLatencyMs(){
+        return mLiveLatencyMs;
+    }
+
+    /**
+     * Number of decoded frames of the current session that were dropped
+     * because they were already late for their presentation time.
+     */
+    public long getLateFrameCount(){
+        return mLateFrameCount;
+    }
+
+    /**
+     * Limits how much of the stream is read to detect its format and codecs
+     * before playback starts, in bytes and milliseconds. 0 keeps FFmpeg's
+     * defaults of 5 MB and 5 s, which cost seconds of startup on live streams.
+     * Takes effect on the next play().
+     */
+    public void setProbeLimits(int probeSize, int analyzeDurationMs){
+        mProbeSize = Math.max(0, probeSize);
+        mAnalyzeDurationMs = Math.max(0, analyzeDurationMs);
+    }
+
+    /**
+     * Socket receive buffer of network inputs in bytes, 0 for the system default.
+     * Takes effect on the next play().
+     */
+    public void setInputBufferSize(int size){
+        mInputBufferSize = Math.max(0, size);
+    }
+
+    /**
+     * noBuffer stops FFmpeg from buffering packets while it probes the input,
+     * flushPackets hands every demuxed packet to the decoder right away.
+     * Takes effect on the next play().
+     */
+    public void setLowDelayInput(boolean noBuffer, boolean flushPackets){
+        mNoBuffer = noBuffer;
+        mFlushPackets = flushPackets;
+    }
+
+    /**
+     * Skips probing the stream when its header already describes every
+     * stream completely. Inputs that need probing, e.g. FLV, are probed anyway.
+     * Takes effect on the next play().
+     */
+    public void setSkipStreamInfo(boolean skip){
+        mSkipStreamInfo = skip;
+    }
+
+    /**
+     * Fails opening the input when it takes longer than openTimeoutMs, and
+     * playback when no data arrives for readTimeoutMs. 0 waits forever.
+     * Takes effect on the next play().
+     */
+    public void setIoTimeouts(int openTimeoutMs, int readTimeoutMs){
+        mOpenTimeoutMs = Math.max(0, openTimeoutMs);
+        mReadTimeoutMs = Math.max(0, readTimeoutMs);
+    }
+
+    /**
+     * How long the current session took to reach each startup phase, or null
+     * when not playing.
+     */
+    public StartupTimings getStartupTimings(){
+        Demuxer demuxer = mDemuxer;
+        if(demuxer == null) return null;
+
+        long[] values = new long[3];
+        demuxer.getStartupTimings(values);
+        long openStartNs = mOpenStartNs;
+        long firstFrameNs = mFirstFrameNs;
+        long offsetUs = openStartNs == 0 ? 0 : (openStartNs - mPlayStartNs) / 1000;
+        return new StartupTimings(
+                values[0] < 0 ? -1 : (offsetUs + values[0]) / 1000,
+                values[1] < 0 ? -1 : (offsetUs + values[1]) / 1000,
+                values[2] < 0 ? -1 : (offsetUs + values[2]) / 1000,
+                firstFrameNs == 0 ? -1 : (firstFrameNs - mPlayStartNs) / 1000000);
+    }
+
+    /**
+     * Milliseconds from play() to the end of each phase, -1 until it is reached.
+     */
+    public static class StartupTimings {
+        /** The input is connected and its header read. */
+        public final long openMs;
+        /** The streams are probed. */
+        public final long streamInfoMs;
+        /** The first video packet was demuxed. */
+        public final long firstPacketMs;
+        /** The first frame was decoded, the time to first frame. */
+        public final long firstFrameMs;
+
+        StartupTimings(long openMs, long streamInfoMs, long firstPacketMs, long firstFrameMs){
+            this.openMs = openMs;
+            this.streamInfoMs = streamInfoMs;
+            this.firstPacketMs = firstPacketMs;
+            this.firstFrameMs = firstFrameMs;
         }
-    };
+    }
+
+    /**
+     * Duration of the stream in milliseconds, -1 for live streams or while
+     * it is not known.
+     */
+    public long getDurationMs(){
+        Demuxer demuxer = mDemuxer;
+        if(demuxer == null) return -1;
+
+        long[] values = new long[3];
+        demuxer.getDuration(values);
+        return values[0];
+    }
+
+    /**
+     * Position of the frame on screen in milliseconds from the start of the
+     * stream, -1 before the first frame.
+     */
+    public long getCurrentPositionMs(){
+        Demuxer demuxer = mDemuxer;
+        long positionUs = mMediaClock.positionUs();
+        if(demuxer == null || positionUs < 0) return -1;
+
+        long[] values = new long[3];
+        demuxer.getDuration(values);
+        return Math.max(0, positionUs / 1000 - values[1]);
+    }
+
+    /**
+     * Whether seekTo() works, i.e. the input is a file or a VOD stream with a
+     * known duration.
+     */
+    public boolean isSeekable(){
+        Demuxer demuxer = mDemuxer;
+        if(demuxer == null) return false;
+
+        long[] values = new long[3];
+        demuxer.getDuration(values);
+        return values[2] != 0;
+    }
+
+    public boolean seekTo(long ms){
+        return seekTo(ms, SEEK_ACCURATE);
+    }
+
+    /**
+     * Continues playback at ms from the start of the stream. Returns right
+     * away, the demux thread seeks before reading the next packet.
+     *
+     * @param mode SEEK_ACCURATE or SEEK_KEY_FRAME
+     * @return false if the stream is not seekable or playback is time-shifted
+     */
+    public boolean seekTo(long ms, int mode){
+        synchronized (mSeekLock) {
+            Demuxer demuxer = mDemuxer;
+            if(demuxer == null || mTimeShifted) return false;
+
+            long[] values = new long[3];
+            demuxer.getDuration(values);
+            if(values[2] == 0) return false;
+            long target = values[1] + Math.max(0, Math.min(ms, values[0]));
+
+            demuxer.beginDiscontinuity();
+            flushDecoders();
+            if(mode == SEEK_ACCURATE) mMediaClock.resyncAt(target * 1000);
+            demuxer.seek(target, mode == SEEK_ACCURATE);
+            return true;
+        }
+    }
+
+    /**
+     * Keeps the last capacityBytes of the stream in file, so playback can go
+     * back in time with seekBack() without asking the source again. The file
+     * is memory mapped and removed right away, put it on storage with room
+     * for it, e.g. the cache directory. null turns time-shift off.
+     * Takes effect on the next play() and needs direct video, see setDirectVideoEnable().
+     */
+    public void setTimeShiftBuffer(File file, long capacityBytes){
+        mTimeShiftFile = file;
+        mTimeShiftCapacity = capacityBytes;
+    }
+
+    /**
+     * Plays from about ms behind the newest packet received, starting at the
+     * key frame before that. Receiving the live stream goes on meanwhile,
+     * so playback stays that far behind until seekToLive().
+     *
+     * @return false if time-shift is off or nothing is buffered yet
+     */
+    public boolean seekBack(long ms){
+        synchronized (mSeekLock) {
+            Demuxer demuxer = mDemuxer;
+            if(demuxer == null || !mTimeShiftActive) return false;
+
+            long[] range = new long[3];
+            demuxer.getTimeShiftRange(range);
+            if(range[0] < 0) return false;
+
+            demuxer.beginDiscontinuity();
+            flushDecoders();
+            long start = demuxer.startTimeShift(Math.max(range[0], range[1] - ms));
+            mTimeShifted = start >= 0;
+            if(!mTimeShifted) demuxer.resumeLive();
+            return mTimeShifted;
+        }
+    }
+
+    /**
+     * Leaves time-shift and plays live again from the next key frame.
+     */
+    public void seekToLive(){
+        synchronized (mSeekLock) {
+            Demuxer demuxer = mDemuxer;
+            if(demuxer == null || !mTimeShifted) return;
+
+            demuxer.beginDiscontinuity();
+            flushDecoders();
+            mTimeShifted = false;
+            demuxer.resumeLive();
+        }
+    }
+
+    public boolean isTimeShifted(){
+        return mTimeShifted;
+    }
+
+    /**
+     * Milliseconds of the stream seekBack() can go back to, 0 without time-shift.
+     */
+    public long getTimeShiftWindowMs(){
+        Demuxer demuxer = mDemuxer;
+        if(demuxer == null || !mTimeShiftActive) return 0;
+
+        long[] range = new long[3];
+        demuxer.getTimeShiftRange(range);
+        return range[0] < 0 ? 0 : range[1] - range[0];
+    }
+
+    /**
+     * How far playback is behind the newest packet received, 0 when live.
+     */
+    public long getTimeShiftDelayMs(){
+        Demuxer demuxer = mDemuxer;
+        long positionUs = mMediaClock.positionUs();
+        if(demuxer == null || !mTimeShifted || positionUs < 0) return 0;
+        return Math.max(0, demuxer.latestVideoPTS() - positionUs / 1000);
+    }
+
+    /**
+     * Drops whatever the decoders hold once the packets jumped to another
+     * position, and waits until they did. The software decoder was already
+     * flushed by Demuxer.beginDiscontinuity().
+     */
+    private void flushDecoders(){
+        CountDownLatch flush = null;
+        if(mActiveDecoderBackend == DECODER_MEDIACODEC){
+            flush = new CountDownLatch(1);
+            final CountDownLatch done = flush;
+            if(mVideoCodecCallback != null){
+                final VideoCodecCallback callback = mVideoCodecCallback;
+                mVideoCodecHandler.post(() -> {
+                    callback.flush();
+                    done.countDown();
+                });
+            }else if(mVideoBufferThread != null){
+                mVideoFlush = flush;
+            }else {
+                flush = null;
+            }
+        }
+
+        AudioPlayer audioPlayer = mAudioPlayer;
+        if(audioPlayer != null) audioPlayer.flush();
+        mVideoFrameQueue.clear();
+
+        if(flush != null){
+            try {
+                flush.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+            }
+        }
+        mSkipRequested.set(false);
+        mMediaClock.setSpeed(1.0f);
+        mMediaClock.reset();
+    }
+
+    private static final long FLUSH_TIMEOUT_MS = 1000;
+
+    /**
+     * Records the playing stream into path, an MP4 unless the extension names
+     * another container. Packets are copied as they are demuxed and written
+     * on a thread of their own, nothing is re-encoded. A recording that can
+     * not keep up drops packets instead of holding up playback, see
+     * PacketStatistics.recordDropped.
+     *
+     * @param fragmented write a fragmented MP4, which stays playable if the
+     *                   recording is cut off
+     * @throws IOException if not playing or path can not be written
+     */
+    public void startRecording(@NonNull String path, boolean fragmented) throws IOException {
+        Demuxer demuxer = mDemuxer;
+        if(demuxer == null) throw new IOException("not playing");
+        demuxer.startRecording(path, fragmented);
+    }
+
+    public void startRecording(@NonNull String path) throws IOException {
+        startRecording(path, false);
+    }
+
+    /**
+     * Writes what is left of the recording and finishes the file. Also done
+     * by stop().
+     *
+     * @throws IOException if writing the recording failed
+     */
+    public void stopRecording() throws IOException {
+        Demuxer demuxer = mDemuxer;
+        if(demuxer != null) demuxer.stopRecording();
+    }
+
+    public boolean isRecording(){
+        Demuxer demuxer = mDemuxer;
+        return demuxer != null && demuxer.isRecording();
+    }
+
+    /**
+     * Counters of the native packet ring of the current session, or null when not playing.
+     */
+    public PacketStatistics getPacketStatistics(){
+        Demuxer demuxer = mDemuxer;
+        if(demuxer == null) return null;
+
+        long[] values = new long[PacketStatistics.SIZE];
+        demuxer.getStatistics(values);
+        return new PacketStatistics(values);
+    }
+
+    public static class PacketStatistics {
+        static final int SIZE = 14;
+
+        public final long pushed;
+        public final long popped;
+        public final long droppedOldest;
+        public final long droppedNonReference;
+        public final long droppedUntilKeyFrame;
+        public final long blockedMs;
+        public final long queued;
+        /** Packets the demuxer took from its pool, and those it had to allocate. */
+        public final long packetPoolHits;
+        public final long packetPoolMisses;
+        /** Same for the frames of the software decoder. */
+        public final long framePoolHits;
+        public final long framePoolMisses;
+        /** Packets written to the current recording, and those dropped because writing fell behind. */
+        public final long recordWritten;
+        public final long recordDropped;
+        /** Packets larger than the codec input buffer, dropped up to the next key frame. */
+        public final long droppedOversized;
+
+        PacketStatistics(long[] values){
+            pushed = values[0];
+            popped = values[1];
+            droppedOldest = values[2];
+            droppedNonReference = values[3];
+            droppedUntilKeyFrame = values[4];
+            blockedMs = values[5] / 1000;
+            queued = values[6];
+            packetPoolHits = values[7];
+            packetPoolMisses = values[8];
+            framePoolHits = values[9];
+            framePoolMisses = values[10];
+            recordWritten = values[11];
+            recordDropped = values[12];
+            droppedOversized = values[13];
+        }
+    }
 
     public void setGyroEnable(boolean enable, @NonNull Context context){
         mContext = context;
-        SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
         if(enable){
-            sensorManager.registerListener(mSensorListener, sensor, 0, 0);
+            enable = mOrientationEngine.start(context, mSensorPeriodUs);
         }else {
-            sensorManager.unregisterListener(mSensorListener, sensor);
+            mOrientationEngine.stop();
         }
         gyroEnable.set(enable);
     }
@@ -152,6 +951,34 @@ public class SpherePlayer  {
         return gyroEnable.get();
     }
 
+    /**
+     * Sets the orientation sensor sampling period in microseconds, or one of the
+     * SensorManager.SENSOR_DELAY_* constants. Rotations are applied once per
+     * vsync anyway, so rates above the display refresh only cost CPU.
+     * Takes effect immediately if the gyro is enabled.
+     */
+    public void setSensorPeriod(int periodUs){
+        mSensorPeriodUs = periodUs;
+        if(gyroEnable.get() && mContext != null){
+            setGyroEnable(true, mContext);
+        }
+    }
+
+    public int getSensorPeriod(){
+        return mSensorPeriodUs;
+    }
+
+    /**
+     * See {@link SphereSurfaceView.SphereRenderer#setOrientationPrediction(int)}.
+     */
+    public void setOrientationPrediction(int horizonMs){
+        mSphereSurfaceView.getSphereRender().setOrientationPrediction(horizonMs);
+    }
+
+    public float getMotionToPhotonLatencyMs(){
+        return mSphereSurfaceView.getSphereRender().getMotionToPhotonLatencyMs();
+    }
+
 
     @SuppressLint("ClickableViewAccessibility")
     private void setTouchEvent(){
@@ -175,9 +1002,7 @@ public class SpherePlayer  {
                                 mStartX = x;
                                 mStartY = y;
 
-                                mSphereSurfaceView.getSphereRender().rotateY(0.05f * deltaX);
-                                mSphereSurfaceView.getSphereRender().rotateX(-0.05f * deltaY);
-                                mSphereSurfaceView.requestRender();
+                                mSphereSurfaceView.addRotation(-0.05f * deltaY, 0.05f * deltaX);
                                 break;
                             case MotionEvent.ACTION_UP:
                                 break;
@@ -202,8 +1027,7 @@ public class SpherePlayer  {
                                 float deltaDistance = distance - mLastDistance;
                                 mLastDistance = distance;
 
-                                mSphereSurfaceView.getSphereRender().zoom(-0.05f * deltaDistance);
-                                mSphereSurfaceView.requestRender();
+                                mSphereSurfaceView.addZoom(-0.05f * deltaDistance);
                             }
                             break;
                             case MotionEvent.ACTION_UP:
@@ -222,142 +1046,730 @@ public class SpherePlayer  {
 
 
 
-    private boolean initMediaCodec(){
-        try {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                mVideoDecoder = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
-            }else {
-                mVideoDecoder=MediaCodec.createDecoderByType("video/avc");
-            }
-
-            MediaFormat videoFormat ;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                videoFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 1920, 1080);
-            }else {
-                videoFormat = MediaFormat.createVideoFormat("video/avc", 1920, 1080);
-            }
-
-            mVideoDecoder.configure(videoFormat,mSphereSurfaceView.getSphereRender().getSurface(),null,0);
-            mVideoDecoder.start();
-        } catch (Exception e) {
-            new StopThread(ERROR_CODEC, e.getMessage()).start();
-            return false;
+    /**
+     * MediaCodec mime type of an FFmpeg codec name, or null if MediaCodec has none.
+     */
+    private static String codecMimeType(String codecName) {
+        if (codecName == null) return null;
+        switch (codecName) {
+            case "h264": return "video/avc";
+            case "hevc": return "video/hevc";
+            case "vp8": return "video/x-vnd.on2.vp8";
+            case "vp9": return "video/x-vnd.on2.vp9";
+            case "av1": return "video/av01";
+            case "mpeg4": return "video/mp4v-es";
+            case "h263": return "video/3gpp";
+            case "mpeg2video": return "video/mpeg2";
+            default: return null;
         }
-
-        return  true;
     }
 
-    private class PollRTMPFrameThread extends Thread {
-        @Override
-        public void run() {
+    /**
+     * Whether the device has a MediaCodec decoder for mime at the given size.
+     */
+    private static boolean isMediaCodecSupported(String mime, int width, int height) {
+        if (mime == null) return false;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
             try {
-                mDemuxer.open(mUrl, new Demuxer.Callback() {
-                    @Override
-                    public void onVideo(byte[] frame, long pts) {
-                        if (mVideoFrameQueue.remainingCapacity() > 0) {
-                            mVideoFrameQueue.offer(frame);
-                        }
-                    }
-                    @Override
-                    public void onAudio(byte[] frame, long pts) {
-                    }
-                });
+                return new MediaCodecList(MediaCodecList.REGULAR_CODECS).findDecoderForFormat(format) != null;
+            } catch (Exception e) {
+                return false;
+            }
+        }
 
-                while (mRunnable) {
-                    mDemuxer.flush();
-                }
-            } catch (IOException e) {
-                new StopThread(ERROR_SOURCE, e.getMessage()).start();
+        for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (info.isEncoder()) continue;
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) return true;
             }
-         }
+        }
+        return false;
     }
 
+    private static final String FAST_START_MIME = "video/avc";
+
+    /**
+     * Creates the decoder the stream will most likely need while the input
+     * is still being opened.
+     */
+    private static class CodecPrepareThread extends Thread {
+        private final String mMime;
+        private MediaCodec mCodec;
+
+        CodecPrepareThread(String mime) {
+            super("CodecPrepareThread");
+            mMime = mime;
+        }
 
-    private class VideoBufferThread extends Thread {
         @Override
         public void run() {
             try {
-                while (mRunnable) {
-                    int inIndex = mVideoDecoder.dequeueInputBuffer(33333);
-                    if (inIndex < 0) continue;
-                    byte[] data = mVideoFrameQueue.take();
-                    mVideoFrameQueue.remove(data);
-
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                        ByteBuffer inputBuffer = mVideoDecoder.getInputBuffer(inIndex);
-                        inputBuffer.put(data, 0, data.length);
-                    } else {
-                        ByteBuffer[] inputBuffers = mVideoDecoder.getInputBuffers();
-                        ByteBuffer inputBuffer = inputBuffers[inIndex];
-                        inputBuffer.put(data, 0, data.length);
-                    }
-                    mVideoDecoder.queueInputBuffer(inIndex, 0, data.length, 0, 0);
-                }
-            }catch (InterruptedException e){
+                mCodec = MediaCodec.createDecoderByType(mMime);
             } catch (Exception e) {
-                new StopThread(ERROR_CODEC, e.getMessage()).start();
             }
         }
-    }
 
-     private class VideoDecoderThread extends Thread {
-        @Override
-        public void run() {
+        /**
+         * The prepared decoder if it is one for mime, or null. Any other
+         * decoder is released.
+         */
+        MediaCodec take(String mime) {
             try {
-                while (mRunnable) {
-                    long startTime = System.currentTimeMillis();
-                    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-                    int outIndex = mVideoDecoder.dequeueOutputBuffer(info, 0);
-                    if (outIndex < 0) continue;
-                    mVideoDecoder.releaseOutputBuffer(outIndex, true);
-                    mSphereSurfaceView.requestRender();
-
-                    long endTime = System.currentTimeMillis();
-                    long delta = endTime - startTime;
-
-                    if (delta < 33) {
-                        Thread.sleep(33 - delta);
-                    }
-                }
-            }catch (InterruptedException e){
-                e.printStackTrace();
+                join();
+            } catch (InterruptedException e) {
             }
-            catch (Exception e) {
-                new StopThread(ERROR_CODEC, e.getMessage()).start();
+            MediaCodec codec = mCodec;
+            mCodec = null;
+            if (codec != null && !mMime.equals(mime)) {
+                codec.release();
+                codec = null;
             }
+            return codec;
         }
     }
 
-    private class StopThread extends Thread{
-        int errorType;
-        String errorMessage;
+    private boolean initMediaCodec(String mime, int width, int height, byte[] extradata){
+        mVideoMime = mime;
+        mVideoWidth = width;
+        mVideoHeight = height;
+        mVideoExtradata = extradata;
 
-        public StopThread() {}
+        SessionPool.ParkedCodec parked = mSessionPool.takeCodec(mime);
+        if (parked != null) {
+            mVideoDecoder = parked.codec;
+            try {
+                if (parked.running && !mAsyncCodec && parked.matches(width, height, extradata,
+                        mSphereSurfaceView.getSphereRender().getSurface())) return true;
+                if (parked.running) mVideoDecoder.stop();
+                configureMediaCodec(mime, width, height, extradata);
+                return true;
+            } catch (Exception e) {
+                releaseMediaCodec();
+            }
+        }
 
-        public StopThread(int type, String message) {
-            errorType = type;
-            errorMessage = message;
+        try {
+            MediaCodec prepared = mCodecPrepareThread == null ? null : mCodecPrepareThread.take(mime);
+            mCodecPrepareThread = null;
+            mVideoDecoder = prepared != null ? prepared : MediaCodec.createDecoderByType(mime);
+            configureMediaCodec(mime, width, height, extradata);
+        } catch (Exception e) {
+            releaseMediaCodec();
+            return false;
         }
 
-        @Override
-        public void run() {
-            super.run();
-            mRunnable = false;
+        return  true;
+    }
 
-            if(mVideoBufferThread != null){
-                try {
-                    mVideoDecoderThread.interrupt();
-                    mVideoDecoderThread.join();
-                }catch (Exception e){}
-            }
+    private void configureMediaCodec(String mime, int width, int height, byte[] extradata){
+        MediaFormat videoFormat = MediaFormat.createVideoFormat(mime, width, height);
+        CodecConfig.apply(videoFormat, mime, extradata);
+        if (mFastStart && Build.VERSION.SDK_INT >= 30) {
+            videoFormat.setInteger("low-latency", 1);
+        }
 
-            if(mVideoBufferThread != null){
-                try {
-                    mVideoBufferThread.interrupt();
-                    mVideoBufferThread.join();
-                }catch (Exception e){}
+        if (mAsyncCodec) {
+            mVideoCodecThread = new HandlerThread("VideoCodecThread");
+            mVideoCodecThread.start();
+            mVideoCodecHandler = new Handler(mVideoCodecThread.getLooper());
+            mVideoCodecCallback = new VideoCodecCallback();
+            mVideoDecoder.setCallback(mVideoCodecCallback, mVideoCodecHandler);
+        }
+
+        mVideoDecoder.configure(videoFormat,mSphereSurfaceView.getSphereRender().getSurface(),null,0);
+        mVideoDecoder.start();
+    }
+
+    /**
+     * Hands the decoder of a session that ended cleanly to the session pool.
+     * Polled decoders are flushed and stay configured, callback driven ones
+     * are stopped since their callback belongs to the session.
+     */
+    private void parkMediaCodec(){
+        try {
+            boolean running = !mAsyncCodec;
+            if (running) {
+                mVideoDecoder.flush();
+            } else {
+                mVideoDecoder.stop();
+            }
+            mSessionPool.putCodec(new SessionPool.ParkedCodec(mVideoDecoder, mVideoMime,
+                    mVideoWidth, mVideoHeight, mVideoExtradata, running,
+                    mSphereSurfaceView.getSphereRender().getSurface()));
+            mVideoDecoder = null;
+        } catch (Exception e) {
+        }
+        releaseMediaCodec();
+    }
+
+    private void releasePreparedCodec(){
+        if(mCodecPrepareThread == null) return;
+
+        MediaCodec codec = mCodecPrepareThread.take(null);
+        if(codec != null) codec.release();
+        mCodecPrepareThread = null;
+    }
+
+    private void releaseMediaCodec(){
+        if(mVideoDecoder != null){
+            try {
+                mVideoDecoder.stop();
+            }catch (Exception e){}
+            mVideoDecoder.release();
+        }
+        mVideoDecoder = null;
+
+        if(mVideoCodecThread != null){
+            mVideoCodecThread.quitSafely();
+            mVideoCodecThread = null;
+        }
+        mVideoCodecHandler = null;
+        mVideoCodecCallback = null;
+    }
+
+    /**
+     * Decodes the video with FFmpeg into a surface of its own on the renderer's
+     * texture, which is released again when playback stops.
+     */
+    private void startSoftwareDecoder() throws IOException {
+        Surface surface = mSphereSurfaceView.getSphereRender().createSurface();
+        if (surface == null) throw new IOException("renderer not ready");
+        mSoftwareSurface = surface;
+        mDemuxer.startSoftwareDecoder(surface, mSoftwareThreadType, mSoftwareThreadCount, mSoftwareHardwareEnable);
+
+        final Demuxer demuxer = mDemuxer;
+        mSoftwareVideoDecoder = new SoftwareVideoDecoder(new SoftwareVideoDecoder.FrameSource() {
+            @Override
+            public int dequeue(int timeoutMs) throws IOException {
+                return demuxer.dequeueFrame(timeoutMs);
+            }
+
+            @Override
+            public long pts() {
+                return demuxer.framePTS();
+            }
+
+            @Override
+            public void draw() throws IOException {
+                demuxer.drawFrame();
+            }
+
+            @Override
+            public void post() {
+                demuxer.postFrame();
+            }
+        }, mMediaClock, new SoftwareVideoDecoder.Listener() {
+            @Override
+            public void onFrame(long ptsUs) {
+                onDecodedFrame(ptsUs);
+            }
+
+            @Override
+            public void onLateFrame() {
+                ++mLateFrameCount;
+            }
+
+            @Override
+            public void onError(String message) {
+                new StopThread(ERROR_CODEC, message).start();
+            }
+        });
+        mSoftwareVideoDecoder.start();
+    }
+
+    /**
+     * Picks the decoder for the opened input and starts it.
+     *
+     * @return false if no decoder could be started
+     */
+    private boolean startVideoDecoder() {
+        String mime = codecMimeType(mDemuxer.getVideoCodecName());
+        int[] size = new int[2];
+        if (!mDemuxer.getVideoSize(size) || size[0] <= 0 || size[1] <= 0) {
+            size[0] = 1920;
+            size[1] = 1080;
+        }
+
+        int backend = mDecoderBackend;
+        if (backend != DECODER_SOFTWARE && mime != null
+                && (backend == DECODER_MEDIACODEC || isMediaCodecSupported(mime, size[0], size[1]))
+                && initMediaCodec(mime, size[0], size[1], mDemuxer.getVideoExtradata())) {
+            mActiveDecoderBackend = DECODER_MEDIACODEC;
+            return true;
+        }
+        releasePreparedCodec();
+        if (backend == DECODER_MEDIACODEC) return false;
+
+        // A parked decoder still holds the renderer's surface.
+        mSessionPool.releaseCodec();
+
+        mDirectVideo = true;
+        mActiveDecoderBackend = DECODER_SOFTWARE;
+        return true;
+    }
+
+    private class PollRTMPFrameThread extends Thread {
+        @Override
+        public void run() {
+            try {
+                mDemuxer.setBatchSize(mCallbackBatchSize);
+                mDemuxer.setBackpressurePolicy(mBackpressurePolicy);
+                mDemuxer.setStartupOptions(mProbeSize, mAnalyzeDurationMs * 1000L, mInputBufferSize,
+                        mNoBuffer, mFlushPackets, mSkipStreamInfo,
+                        mOpenTimeoutMs * 1000L, mReadTimeoutMs * 1000L);
+                mOpenStartNs = System.nanoTime();
+                mDemuxer.open(mUrl);
+                if (!mRunnable) return;
+                if (!startVideoDecoder()) {
+                    new StopThread(ERROR_CODEC, "no decoder for " + mDemuxer.getVideoCodecName()).start();
+                    return;
+                }
+
+                mDemuxer.openOutputs(new Demuxer.Callback() {
+                    @Override
+                    public void onVideo(byte[] frame, long pts) {
+                        if (mVideoFrameQueue.remainingCapacity() > 0) {
+                            mVideoFrameQueue.offer(new VideoPacket(frame, pts));
+                        }
+                    }
+                    @Override
+                    public void onAudio(byte[] frame, long pts) {
+                    }
+                    @Override
+                    public void onVideoBatch(byte[] data, int[] sizes, long[] pts, int count) {
+                        int offset = 0;
+                        for (int i = 0; i < count; ++i) {
+                            onVideo(Arrays.copyOfRange(data, offset, offset + sizes[i]), pts[i]);
+                            offset += sizes[i];
+                        }
+                    }
+                    @Override
+                    public void onAudioBatch(byte[] data, int[] sizes, long[] pts, int count) {
+                    }
+                }, mDirectVideo);
+
+                File timeShiftFile = mTimeShiftFile;
+                if (mDirectVideo && timeShiftFile != null && mTimeShiftCapacity > 0) {
+                    try {
+                        mDemuxer.enableTimeShift(timeShiftFile.getPath(), mTimeShiftCapacity);
+                        mTimeShiftActive = true;
+                    } catch (IOException e) {
+                        notifyError(ERROR_TIME_SHIFT, e.getMessage());
+                    }
+                }
+
+                if (mDirectVideo && mAudioEnable && !mFastStart) startAudio();
+
+                if (mActiveDecoderBackend == DECODER_SOFTWARE) {
+                    startSoftwareDecoder();
+                } else if (!mAsyncCodec) {
+                    mVideoBufferThread = new VideoBufferThread();
+                    mVideoDecoderThread = new VideoDecoderThread();
+                    mVideoBufferThread.start();
+                    mVideoDecoderThread.start();
+                }
+
+                // Creating the audio decoder would hold up demuxing the first
+                // video packets.
+                if (mDirectVideo && mAudioEnable && mFastStart) {
+                    mAudioStartThread = new Thread(SpherePlayer.this::startAudio, "AudioStartThread");
+                    mAudioStartThread.start();
+                }
+
+                while (mRunnable) {
+                    try {
+                        mDemuxer.flush();
+                    } catch (IOException e) {
+                        if (!mRunnable || e instanceof InterruptedIOException
+                                || !reconnect(e.getMessage())) throw e;
+                        continue;
+                    }
+                    if (mVideoCodecCallback != null) mVideoCodecCallback.notifyPacket();
+                }
+            } catch (InterruptedIOException e) {
+                // Demuxer.close() from a StopThread already tearing down.
+            } catch (IOException e) {
+                if (mRunnable) new StopThread(ERROR_SOURCE, e.getMessage()).start();
+            }
+         }
+    }
+
+
+    private class VideoBufferThread extends Thread {
+        @Override
+        public void run() {
+            try {
+                ByteBuffer[] inputBuffers = null;
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                    inputBuffers = mVideoDecoder.getInputBuffers();
+                }
+
+                int inIndex = -1;
+                while (mRunnable) {
+                    CountDownLatch flush = mVideoFlush;
+                    if (flush != null) {
+                        mVideoFlush = null;
+                        mCodecLock.lock();
+                        try {
+                            mVideoDecoder.flush();
+                        } finally {
+                            mCodecLock.unlock();
+                        }
+                        inIndex = -1;
+                        flush.countDown();
+                    }
+
+                    if (inIndex < 0) inIndex = mVideoDecoder.dequeueInputBuffer(33333);
+                    if (inIndex < 0) continue;
+
+                    ByteBuffer inputBuffer;
+                    if (inputBuffers == null) {
+                        inputBuffer = mVideoDecoder.getInputBuffer(inIndex);
+                    } else {
+                        inputBuffer = inputBuffers[inIndex];
+                    }
+
+                    int size = readVideoPacket(inputBuffer, 33);
+                    if (size == 0) continue;
+                    mVideoDecoder.queueInputBuffer(inIndex, 0, size, mVideoPacketPTS, 0);
+                    inIndex = -1;
+                }
+            }catch (InterruptedException e){
+            } catch (Exception e) {
+                new StopThread(ERROR_CODEC, e.getMessage()).start();
+            }
+        }
+    }
+
+     private class VideoDecoderThread extends Thread {
+        @Override
+        public void run() {
+            try {
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                boolean timedRelease = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+                long releaseAheadNs = timedRelease ? MediaClock.RELEASE_AHEAD_NS : 0;
+                while (mRunnable) {
+                    // A flush from the buffer thread must not invalidate the
+                    // index held here.
+                    mCodecLock.lock();
+                    try {
+                        int outIndex = mVideoDecoder.dequeueOutputBuffer(info, 10000);
+                        if (outIndex < 0) continue;
+
+                        onDecodedFrame(info.presentationTimeUs);
+                        long renderNs = mMediaClock.renderTimeNs(info.presentationTimeUs);
+                        long now = System.nanoTime();
+                        if (MediaClock.isLate(renderNs, now)) {
+                            mVideoDecoder.releaseOutputBuffer(outIndex, false);
+                            ++mLateFrameCount;
+                            continue;
+                        }
+
+                        long waitNs = renderNs - now - releaseAheadNs;
+                        if (waitNs > 0) {
+                            Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+                        }
+                        if (timedRelease) {
+                            mVideoDecoder.releaseOutputBuffer(outIndex, renderNs);
+                        } else {
+                            mVideoDecoder.releaseOutputBuffer(outIndex, true);
+                        }
+                    } finally {
+                        mCodecLock.unlock();
+                    }
+                }
+            }catch (InterruptedException e){
+                e.printStackTrace();
+            }
+            catch (Exception e) {
+                new StopThread(ERROR_CODEC, e.getMessage()).start();
+            }
+        }
+    }
+
+    private void startAudio() {
+        int[] format = new int[2];
+        if (!mDemuxer.getAudioFormat(format)) return;
+
+        final Demuxer demuxer = mDemuxer;
+        AudioPlayer audioPlayer = new AudioPlayer(new AudioPlayer.PacketSource() {
+            @Override
+            public int read(ByteBuffer buffer, int timeoutMs) throws IOException {
+                return demuxer.readAudio(buffer, timeoutMs);
+            }
+
+            @Override
+            public long pts() {
+                return demuxer.readAudioPTS();
+            }
+        }, mMediaClock, message -> notifyError(ERROR_AUDIO, message));
+
+        try {
+            audioPlayer.start(format[0], format[1]);
+            mAudioPlayer = audioPlayer;
+        } catch (Exception e) {
+            audioPlayer.stop();
+            notifyError(ERROR_AUDIO, e.getMessage());
+        }
+    }
+
+    private void notifyError(int type, String message) {
+        EventListener listener;
+
+        mEventListenerLock.lock();
+        listener = mEventListener;
+        mEventListenerLock.unlock();
+
+        listener.onError(type, message);
+    }
+
+    private static final float LIVE_CATCH_UP_SPEED = 1.1f;
+    private static final long LIVE_SKIP_INTERVAL_MS = 1000;
+
+    /**
+     * Called for every decoded frame before it is scheduled.
+     */
+    private void onDecodedFrame(long ptsUs) {
+        if (mFirstFrameNs == 0) {
+            mFirstFrameNs = System.nanoTime();
+            notifyStartup();
+        }
+        updateLiveLatency(ptsUs);
+    }
+
+    private void notifyStartup() {
+        StartupTimings timings = getStartupTimings();
+        if (timings == null) return;
+
+        EventListener listener;
+
+        mEventListenerLock.lock();
+        listener = mEventListener;
+        mEventListenerLock.unlock();
+
+        listener.onStartup(timings);
+    }
+
+    private void updateLiveLatency(long ptsUs) {
+        if (!mLiveMode || mTimeShifted || ptsUs < 0) return;
+
+        long latest = mDemuxer.latestVideoPTS();
+        if (latest < 0) return;
+        long latency = latest - ptsUs / 1000;
+        mLiveLatencyMs = latency;
+
+        int target = mTargetLatencyMs;
+        long now = SystemClock.elapsedRealtime();
+        if (latency > 2L * target && mDirectVideo && mActiveDecoderBackend == DECODER_MEDIACODEC && now - mLastSkipTime > LIVE_SKIP_INTERVAL_MS) {
+            mLastSkipTime = now;
+            mSkipRequested.set(true);
+        } else if (latency > target) {
+            mMediaClock.setSpeed(LIVE_CATCH_UP_SPEED);
+        } else {
+            mMediaClock.setSpeed(1.0f);
+        }
+    }
+
+    /**
+     * Copies the next video packet into a codec input buffer and stores its
+     * presentation time in microseconds in mVideoPacketPTS.
+     *
+     * @return packet size, or 0 if none arrived within timeoutMs
+     */
+    private int readVideoPacket(ByteBuffer buffer, int timeoutMs) throws IOException, InterruptedException {
+        long pts;
+        int size;
+        if (mDirectVideo) {
+            if (mSkipRequested.compareAndSet(true, false)) {
+                long keyFramePTS = mDemuxer.skipToKeyFrame();
+                if (keyFramePTS < 0) keyFramePTS = mDemuxer.latestVideoPTS() + 1;
+                mMediaClock.resyncAt(keyFramePTS * 1000);
+            }
+            size = mDemuxer.readVideo(buffer, timeoutMs);
+            if (size == 0) return 0;
+            pts = mDemuxer.readPTS();
+        } else {
+            VideoPacket packet = mVideoFrameQueue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (packet == null) return 0;
+            buffer.clear();
+            buffer.put(packet.data, 0, packet.data.length);
+            size = packet.data.length;
+            pts = packet.pts;
+        }
+
+        mVideoPacketPTS = pts < 0 ? 0 : pts * 1000;
+        return size;
+    }
+
+    private static class VideoPacket {
+        final byte[] data;
+        final long pts;
+
+        VideoPacket(byte[] data, long pts) {
+            this.data = data;
+            this.pts = pts;
+        }
+    }
+
+    /**
+     * All methods run on mVideoCodecThread except notifyPacket(), which the demux
+     * thread calls after every packet.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private class VideoCodecCallback extends MediaCodec.Callback {
+        private final int[] mFreeInputs = new int[64];
+        private int mFreeInputHead = 0;
+        private volatile int mFreeInputCount = 0;
+        private final AtomicBoolean mFeedPosted = new AtomicBoolean(false);
+        private final Runnable mFeedRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mFeedPosted.set(false);
+                feedInputBuffers();
+            }
+        };
+        private final int[] mPendingOutputs = new int[32];
+        private final long[] mPendingRenderNs = new long[32];
+        private int mPendingOutputHead = 0;
+        private int mPendingOutputCount = 0;
+        private final Runnable mReleaseRunnable = new Runnable() {
+            @Override
+            public void run() {
+                releaseOutputBuffers();
+            }
+        };
+
+        void notifyPacket() {
+            if (mFreeInputCount > 0 && mFeedPosted.compareAndSet(false, true)) {
+                mVideoCodecHandler.post(mFeedRunnable);
+            }
+        }
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            mFreeInputs[(mFreeInputHead + mFreeInputCount) % mFreeInputs.length] = index;
+            ++mFreeInputCount;
+            feedInputBuffers();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if (!mRunnable) return;
+            try {
+                onDecodedFrame(info.presentationTimeUs);
+                long renderNs = mMediaClock.renderTimeNs(info.presentationTimeUs);
+                if (MediaClock.isLate(renderNs, System.nanoTime())) {
+                    codec.releaseOutputBuffer(index, false);
+                    ++mLateFrameCount;
+                    return;
+                }
+                if (mPendingOutputCount == mPendingOutputs.length) {
+                    codec.releaseOutputBuffer(index, renderNs);
+                    return;
+                }
+
+                int tail = (mPendingOutputHead + mPendingOutputCount) % mPendingOutputs.length;
+                mPendingOutputs[tail] = index;
+                mPendingRenderNs[tail] = renderNs;
+                if (++mPendingOutputCount == 1) releaseOutputBuffers();
+            } catch (Exception e) {
+                new StopThread(ERROR_CODEC, e.getMessage()).start();
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            new StopThread(ERROR_CODEC, e.getMessage()).start();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        }
+
+        /**
+         * Hands pending outputs to the surface shortly before they are due and
+         * schedules itself for the next one.
+         */
+        private void releaseOutputBuffers() {
+            try {
+                while (mRunnable && mPendingOutputCount > 0) {
+                    long renderNs = mPendingRenderNs[mPendingOutputHead];
+                    long waitNs = renderNs - System.nanoTime() - MediaClock.RELEASE_AHEAD_NS;
+                    if (waitNs > 0) {
+                        mVideoCodecHandler.removeCallbacks(mReleaseRunnable);
+                        mVideoCodecHandler.postDelayed(mReleaseRunnable, Math.max(1, waitNs / 1000000));
+                        return;
+                    }
+
+                    mVideoDecoder.releaseOutputBuffer(mPendingOutputs[mPendingOutputHead], renderNs);
+                    mPendingOutputHead = (mPendingOutputHead + 1) % mPendingOutputs.length;
+                    --mPendingOutputCount;
+                }
+            } catch (Exception e) {
+                new StopThread(ERROR_CODEC, e.getMessage()).start();
             }
+        }
+
+        /**
+         * Flushes the decoder and forgets the buffers it handed out. Runs on
+         * mVideoCodecThread like the callbacks.
+         */
+        void flush() {
+            try {
+                mVideoCodecHandler.removeCallbacks(mReleaseRunnable);
+                mVideoDecoder.flush();
+                mFreeInputHead = 0;
+                mFreeInputCount = 0;
+                mPendingOutputHead = 0;
+                mPendingOutputCount = 0;
+                // Callbacks stay off after a flush until the codec is resumed.
+                mVideoDecoder.start();
+            } catch (Exception e) {
+                new StopThread(ERROR_CODEC, e.getMessage()).start();
+            }
+        }
 
+        private void feedInputBuffers() {
+            try {
+                while (mRunnable && mFreeInputCount > 0) {
+                    int index = mFreeInputs[mFreeInputHead];
+                    int size = readVideoPacket(mVideoDecoder.getInputBuffer(index), 0);
+                    if (size == 0) return;
+
+                    mVideoDecoder.queueInputBuffer(index, 0, size, mVideoPacketPTS, 0);
+                    mFreeInputHead = (mFreeInputHead + 1) % mFreeInputs.length;
+                    --mFreeInputCount;
+                }
+            } catch (Exception e) {
+                new StopThread(ERROR_CODEC, e.getMessage()).start();
+            }
+        }
+    }
+
+    private class StopThread extends Thread{
+        int errorType;
+        String errorMessage;
+
+        public StopThread() {}
+
+        public StopThread(int type, String message) {
+            errorType = type;
+            errorMessage = message;
+        }
+
+        @Override
+        public void run() {
+            super.run();
+            mRunnable = false;
+
+            if(mDemuxer != null){
+                mDemuxer.close();
+            }
+
+            // The decoders are started by the poll thread, wait for it first.
             if(mPollRTMPFrameThread != null){
                 try {
                     mPollRTMPFrameThread.interrupt();
@@ -365,38 +1777,165 @@ public class SpherePlayer  {
                 }catch (Exception e){}
             }
 
-            if(mVideoDecoder != null){
+            if(mDemuxer != null){
                 try {
-                    mVideoDecoder.stop();
-                    mVideoDecoder.release();
+                    mDemuxer.stopRecording();
+                }catch (IOException e){
+                    notifyError(ERROR_RECORDING, e.getMessage());
+                }
+            }
+
+            if(mVideoDecoderThread != null){
+                try {
+                    mVideoDecoderThread.interrupt();
+                    mVideoDecoderThread.join();
                 }catch (Exception e){}
             }
-            mVideoDecoder = null;
+
+            if(mVideoBufferThread != null){
+                try {
+                    mVideoBufferThread.interrupt();
+                    mVideoBufferThread.join();
+                }catch (Exception e){}
+            }
+
+            if(mSoftwareVideoDecoder != null){
+                mSoftwareVideoDecoder.stop();
+                mSoftwareVideoDecoder = null;
+            }
+            if(mDemuxer != null){
+                mDemuxer.stopSoftwareDecoder();
+            }
+            if(mSoftwareSurface != null){
+                mSoftwareSurface.release();
+                mSoftwareSurface = null;
+            }
+
+            if(mAudioStartThread != null){
+                try {
+                    mAudioStartThread.join();
+                }catch (Exception e){}
+                mAudioStartThread = null;
+            }
+
+            if(mAudioPlayer != null){
+                mAudioPlayer.stop();
+                mAudioPlayer = null;
+            }
+
+            releasePreparedCodec();
+            if(mSessionPoolEnable && mVideoDecoder != null && errorType != ERROR_CODEC){
+                parkMediaCodec();
+            }else {
+                releaseMediaCodec();
+            }
+            if(mDemuxer != null){
+                mSessionPool.putDemuxer(mDemuxer, mSessionPoolEnable);
+            }
             mDemuxer = null;
             mSphereSurfaceView.setOnTouchListener(null);
 
-            if(mContext != null) {
-                SensorManager sensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
-                Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
-                sensorManager.unregisterListener(mSensorListener, sensor);
-            }
+            mOrientationEngine.stop();
             gyroFlag.set(false);
 
             mVideoFrameQueue.clear();
             mIsPlaying.set(false);
             if(errorMessage != null){
-                EventListener listener;
+                notifyError(errorType, errorMessage);
+            }
+        }
+    }
+
 
-                mEventListenerLock.lock();
-                listener = mEventListener;
-                mEventListenerLock.unlock();
 
-                listener.onError(errorType, errorMessage);
+    /**
+     * Decoder and native demuxers kept between sessions.
+     */
+    private static class SessionPool {
+        private static final int MAX_DEMUXERS = 2;
+
+        static class ParkedCodec {
+            final MediaCodec codec;
+            final String mime;
+            final int width;
+            final int height;
+            final byte[] extradata;
+            /** Flushed but still configured and started. */
+            final boolean running;
+            final Surface surface;
+
+            ParkedCodec(MediaCodec codec, String mime, int width, int height, byte[] extradata,
+                        boolean running, Surface surface) {
+                this.codec = codec;
+                this.mime = mime;
+                this.width = width;
+                this.height = height;
+                this.extradata = extradata;
+                this.running = running;
+                this.surface = surface;
+            }
+
+            boolean matches(int width, int height, byte[] extradata, Surface surface) {
+                return this.surface == surface && this.width == width && this.height == height && Arrays.equals(this.extradata, extradata);
             }
         }
-    }
 
+        private final ArrayDeque<Demuxer> mDemuxers = new ArrayDeque<>();
+        private ParkedCodec mCodec;
+
+        synchronized Demuxer takeDemuxer() {
+            Demuxer demuxer = mDemuxers.poll();
+            return demuxer != null ? demuxer : new Demuxer();
+        }
+
+        /**
+         * Resets demuxer for the next session, or frees it right away if it is
+         * not to be kept or the pool is full.
+         */
+        synchronized void putDemuxer(Demuxer demuxer, boolean keep) {
+            if (keep && mDemuxers.size() < MAX_DEMUXERS) {
+                demuxer.reset();
+                mDemuxers.add(demuxer);
+            } else {
+                demuxer.release();
+            }
+        }
+
+        synchronized boolean hasCodec(String mime) {
+            return mCodec != null && mCodec.mime.equals(mime);
+        }
+
+        /**
+         * The parked decoder if it decodes mime. A decoder for another codec
+         * is released.
+         */
+        synchronized ParkedCodec takeCodec(String mime) {
+            ParkedCodec codec = mCodec;
+            mCodec = null;
+            if (codec != null && !codec.mime.equals(mime)) {
+                codec.codec.release();
+                codec = null;
+            }
+            return codec;
+        }
 
+        synchronized void putCodec(ParkedCodec codec) {
+            releaseCodec();
+            mCodec = codec;
+        }
+
+        synchronized void releaseCodec() {
+            if (mCodec == null) return;
+            mCodec.codec.release();
+            mCodec = null;
+        }
+
+        synchronized void clear() {
+            releaseCodec();
+            for (Demuxer demuxer : mDemuxers) demuxer.release();
+            mDemuxers.clear();
+        }
+    }
 
     private static class Demuxer {
 
@@ -404,28 +1943,315 @@ public class SpherePlayer  {
             mPointer = createDemuxer();
         }
 
-        public void open(String url, com.hhqj.player.SpherePlayer.Demuxer.Callback callback) throws IOException {
-            int ret =openInput(mPointer, url, callback);
+        /**
+         * Closes the stream and empties the packet rings so the demuxer can
+         * open another one.
+         */
+        public synchronized void reset(){
+            resetDemuxer(mPointer);
+        }
+
+        /**
+         * Frees the native demuxer now instead of when it is finalized.
+         */
+        public synchronized void release(){
+            if(mPointer == 0) return;
+            destroyDemuxer(mPointer);
+            mPointer = 0;
+        }
+
+        public void open(String url) throws IOException {
+            int ret =openInput(mPointer, url);
+            if(ret < 0) throw ioException(ret);
+        }
+
+        /**
+         * Starts delivering the packets of the opened input, see open().
+         */
+        public void openOutputs(com.hhqj.player.SpherePlayer.Demuxer.Callback callback, boolean directVideo) throws IOException {
+            int ret =openOutputs(mPointer, callback, directVideo);
+            if(ret < 0) throw new IOException(getErrorString(ret));
+        }
+
+        /**
+         * FFmpeg name of the video codec, e.g. "h264", or null without video.
+         */
+        public String getVideoCodecName(){
+            return getVideoCodecName(mPointer);
+        }
+
+        /**
+         * Codec extradata of the video, e.g. the avcC or Annex-B parameter sets, or null.
+         */
+        public byte[] getVideoExtradata(){
+            return getVideoExtradata(mPointer);
+        }
+
+        /**
+         * Fills values with width and height of the video.
+         */
+        public boolean getVideoSize(int[] values){
+            return getVideoSize(mPointer, values) >= 0;
+        }
+
+        /**
+         * Decodes the video ring with FFmpeg into surface. Only valid when
+         * the outputs were opened with directVideo.
+         */
+        public void startSoftwareDecoder(Surface surface, int threadType, int threadCount, boolean hardware) throws IOException{
+            int ret = startSoftwareDecoder(mPointer, surface, threadType, threadCount, hardware);
+            if(ret < 0) throw new IOException(getErrorString(ret));
+        }
+
+        public synchronized String getSoftwareDecoderName(){
+            if(mPointer == 0) return null;
+            return getSoftwareDecoderName(mPointer);
+        }
+
+        /**
+         * Waits for the next decoded frame, see SoftwareVideoDecoder.FrameSource.
+         */
+        public int dequeueFrame(int timeoutMs) throws IOException{
+            int ret = dequeueFrame(mPointer, timeoutMs);
+            if(ret < 0) throw new IOException(getErrorString(ret));
+            return ret;
+        }
+
+        public long framePTS(){
+            return framePTS(mPointer);
+        }
+
+        public void drawFrame() throws IOException{
+            int ret = drawFrame(mPointer);
             if(ret < 0) throw new IOException(getErrorString(ret));
         }
 
+        public void postFrame(){
+            postFrame(mPointer);
+        }
+
+        /**
+         * Fills values with the last and the average decode time per frame in
+         * microseconds, -1 without software decoder.
+         */
+        public synchronized void getDecodeTime(long[] values){
+            if(mPointer == 0) return;
+            getDecodeTime(mPointer, values);
+        }
+
+        public void stopSoftwareDecoder(){
+            stopSoftwareDecoder(mPointer);
+        }
+
+        /**
+         * Copies the next video packet into a direct buffer, e.g. a MediaCodec input buffer.
+         * Only valid when opened with directVideo.
+         *
+         * @return packet size, or 0 if nothing arrived within timeoutMs
+         */
+        public int readVideo(ByteBuffer buffer, int timeoutMs) throws IOException{
+            int ret = readVideo(mPointer, buffer, timeoutMs);
+            if(ret < 0) throw new IOException(getErrorString(ret));
+            return ret;
+        }
+
+        public long readPTS(){
+            return readPTS(mPointer);
+        }
+
+        /**
+         * Same as readVideo() for the ADTS audio packets.
+         */
+        public int readAudio(ByteBuffer buffer, int timeoutMs) throws IOException{
+            int ret = readAudio(mPointer, buffer, timeoutMs);
+            if(ret < 0) throw new IOException(getErrorString(ret));
+            return ret;
+        }
+
+        public long readAudioPTS(){
+            return readAudioPTS(mPointer);
+        }
+
+        /**
+         * Fills values with sample rate and channel count.
+         *
+         * @return false if the stream has no playable audio
+         */
+        public boolean getAudioFormat(int[] values){
+            return getAudioFormat(mPointer, values) >= 0;
+        }
+
+        /**
+         * Pts in milliseconds of the newest video packet received from the source.
+         */
+        public long latestVideoPTS(){
+            return latestVideoPTS(mPointer);
+        }
+
+        /**
+         * Drops queued video packets up to the newest keyframe. Must be called
+         * from the thread that reads video.
+         *
+         * @return pts in milliseconds playback continues from, or -1 if not known yet
+         */
+        public long skipToKeyFrame(){
+            return skipToKeyFrame(mPointer);
+        }
+
+        public void setStartupOptions(long probeSize, long analyzeDurationUs, int bufferSize,
+                                      boolean noBuffer, boolean flushPackets, boolean skipStreamInfo,
+                                      long openTimeoutUs, long readTimeoutUs){
+            setStartupOptions(mPointer, probeSize, analyzeDurationUs, bufferSize, noBuffer, flushPackets, skipStreamInfo,
+                    openTimeoutUs, readTimeoutUs);
+        }
+
+        /**
+         * Fills values with the microseconds from open() to the end of the open,
+         * stream info and first video packet phases, -1 until reached.
+         */
+        public synchronized void getStartupTimings(long[] values){
+            if(mPointer == 0) return;
+            getStartupTimings(mPointer, values);
+        }
+
+        public void setBatchSize(int size){
+            setBatchSize(mPointer, size);
+        }
+
+        public void setBackpressurePolicy(int policy){
+            setBackpressurePolicy(mPointer, policy);
+        }
+
+        public synchronized void getStatistics(long[] values){
+            if(mPointer == 0) return;
+            getStatistics(mPointer, values);
+        }
+
+        public void startRecording(String path, boolean fragmented) throws IOException {
+            int ret = startRecording(mPointer, path, fragmented);
+            if(ret < 0) throw new IOException(getErrorString(ret));
+        }
+
+        public void stopRecording() throws IOException {
+            int ret = stopRecording(mPointer);
+            if(ret < 0) throw new IOException(getErrorString(ret));
+        }
+
+        public boolean isRecording(){
+            return isRecording(mPointer);
+        }
+
+        public void enableTimeShift(String path, long capacity) throws IOException {
+            int ret = enableTimeShift(mPointer, path, capacity);
+            if(ret < 0) throw new IOException(getErrorString(ret));
+        }
+
+        /**
+         * Stops feeding the packet rings and empties them, and flushes the
+         * software decoder. See startTimeShift(), resumeLive() and seek() for
+         * where playback continues.
+         */
+        public synchronized void beginDiscontinuity(){
+            if(mPointer == 0) return;
+            beginDiscontinuity(mPointer);
+        }
+
+        /**
+         * Plays from the time-shift buffer at the key frame before ptsMs.
+         *
+         * @return pts of that key frame, negative if there is none
+         */
+        public synchronized long startTimeShift(long ptsMs){
+            if(mPointer == 0) return -1;
+            return startTimeShift(mPointer, ptsMs);
+        }
+
+        public synchronized void resumeLive(){
+            if(mPointer == 0) return;
+            resumeLive(mPointer);
+        }
+
+        /**
+         * Makes the demux thread continue at the key frame before ms, a pts
+         * in milliseconds. Call after beginDiscontinuity().
+         */
+        public synchronized void seek(long ms, boolean accurate){
+            if(mPointer == 0) return;
+            seek(mPointer, ms, accurate);
+        }
+
+        /**
+         * Duration and start time of the input in milliseconds, the duration
+         * is -1 if unknown, and 1 if the input is seekable, else 0.
+         */
+        public synchronized void getDuration(long[] values){
+            values[0] = -1;
+            values[1] = 0;
+            values[2] = 0;
+            if(mPointer == 0) return;
+            getDuration(mPointer, values);
+        }
+
+        /**
+         * Oldest key frame and newest video pts in the time-shift buffer in
+         * milliseconds, -1 while empty, and how often playback was overtaken.
+         */
+        public synchronized void getTimeShiftRange(long[] values){
+            values[0] = -1;
+            values[1] = -1;
+            if(mPointer == 0) return;
+            getTimeShiftRange(mPointer, values);
+        }
+
+        /**
+         * Releases a demux thread blocked on a full packet ring or in network
+         * I/O. Opening and reading fail until the demuxer is reused.
+         */
+        public void close(){
+            close(mPointer);
+        }
+
+        /**
+         * Opens the input again after flush() failed, keeping the outputs.
+         */
+        public void reconnect(String url) throws IOException {
+            int ret = reconnect(mPointer, url);
+            if(ret < 0) throw ioException(ret);
+        }
+
         public void flush() throws IOException{
             int ret = flush(mPointer);
-            if(ret < 0) throw new IOException(getErrorString(ret));
+            if(ret < 0) throw ioException(ret);
+        }
+
+        /** AVERROR_EXIT, returned by I/O that close() interrupted. */
+        private static final int AVERROR_EXIT = -0x54495845;
+
+        private IOException ioException(int ret){
+            if(ret == AVERROR_EXIT) return new InterruptedIOException(getErrorString(ret));
+            return new IOException(getErrorString(ret));
         }
 
         @Override
         public void finalize() throws Throwable {
             super.finalize();
-            destroyDemuxer(mPointer);
+            release();
         }
 
-        private final long mPointer;
+        private long mPointer;
 
         public interface Callback{
             void onVideo(byte[] frame, long pts);
 
             void onAudio(byte[] frame, long pts);
+
+            /**
+             * Delivers count packets stored back to back in data. The arrays are
+             * reused by the native side and must not be kept after returning.
+             */
+            void onVideoBatch(byte[] data, int[] sizes, long[] pts, int count);
+
+            void onAudioBatch(byte[] data, int[] sizes, long[] pts, int count);
         }
 
         static {
@@ -436,10 +2262,86 @@ public class SpherePlayer  {
 
         private native void destroyDemuxer(long pointer);
 
-        private native int openInput(long pointer, String url, com.hhqj.player.SpherePlayer.Demuxer.Callback callback);
+        private native void resetDemuxer(long pointer);
+
+        private native int startRecording(long pointer, String path, boolean fragmented);
+
+        private native int stopRecording(long pointer);
+
+        private native boolean isRecording(long pointer);
+
+        private native int enableTimeShift(long pointer, String path, long capacity);
+
+        private native void beginDiscontinuity(long pointer);
+
+        private native long startTimeShift(long pointer, long ptsMs);
+
+        private native void resumeLive(long pointer);
+
+        private native void getTimeShiftRange(long pointer, long[] values);
+
+        private native void seek(long pointer, long ms, boolean accurate);
+
+        private native int reconnect(long pointer, String url);
+
+        private native void getDuration(long pointer, long[] values);
+
+        private native void setBatchSize(long pointer, int size);
+
+        private native void setStartupOptions(long pointer, long probeSize, long analyzeDurationUs, int bufferSize,
+                                              boolean noBuffer, boolean flushPackets, boolean skipStreamInfo,
+                                              long openTimeoutUs, long readTimeoutUs);
+
+        private native void getStartupTimings(long pointer, long[] values);
+
+        private native int openInput(long pointer, String url);
+
+        private native int openOutputs(long pointer, com.hhqj.player.SpherePlayer.Demuxer.Callback callback, boolean directVideo);
+
+        private native String getVideoCodecName(long pointer);
+
+        private native byte[] getVideoExtradata(long pointer);
+
+        private native int getVideoSize(long pointer, int[] values);
+
+        private native int startSoftwareDecoder(long pointer, Surface surface, int threadType, int threadCount, boolean hardware);
+
+        private native String getSoftwareDecoderName(long pointer);
+
+        private native int dequeueFrame(long pointer, int timeoutMs);
+
+        private native long framePTS(long pointer);
+
+        private native int drawFrame(long pointer);
+
+        private native void postFrame(long pointer);
+
+        private native void getDecodeTime(long pointer, long[] values);
+
+        private native void stopSoftwareDecoder(long pointer);
 
         private native int flush(long pointer);
 
+        private native int readVideo(long pointer, ByteBuffer buffer, int timeoutMs);
+
+        private native long readPTS(long pointer);
+
+        private native int readAudio(long pointer, ByteBuffer buffer, int timeoutMs);
+
+        private native long readAudioPTS(long pointer);
+
+        private native int getAudioFormat(long pointer, int[] values);
+
+        private native long latestVideoPTS(long pointer);
+
+        private native long skipToKeyFrame(long pointer);
+
+        private native void setBackpressurePolicy(long pointer, int policy);
+
+        private native void getStatistics(long pointer, long[] values);
+
+        private native void close(long pointer);
+
         private native String getErrorString(int value);
 
     }
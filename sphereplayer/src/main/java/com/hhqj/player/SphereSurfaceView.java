@@ -5,12 +5,13 @@ import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.Display;
 import android.view.Surface;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -18,10 +19,53 @@ import javax.microedition.khronos.opengles.GL10;
 import static android.opengl.GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
 
 public class SphereSurfaceView extends GLSurfaceView  {
+    public static final int PROJECTION_EQUIRECTANGULAR = 0;
+    public static final int PROJECTION_CUBE_MAP = 1;
+    public static final int PROJECTION_EQUI_ANGULAR_CUBE_MAP = 2;
+
+    private static final float MESH_RADIUS = 6;
+
+    /**
+     * Receives the tiles inside the view whenever that set changes. Called on
+     * the GL thread; tiles is reused afterwards and has to be copied if kept.
+     */
+    public interface OnVisibleTilesChangedListener {
+        void onVisibleTilesChanged(int[] tiles, int count);
+    }
 
     private final SphereRenderer mRenderer=new SphereRenderer();
     private final float[] mRotationMatrix = new float[16];
 
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final AtomicBoolean mFrameScheduled = new AtomicBoolean(false);
+    private final Object mInputLock = new Object();
+    private float mPendingRotateX;
+    private float mPendingRotateY;
+    private float mPendingZoom;
+    private volatile int mDisplayRotation;
+
+    /**
+     * Applies the input collected since the last vsync in one go and draws
+     * at most one frame for it.
+     */
+    private final Choreographer.FrameCallback mFrameCallback = frameTimeNanos -> {
+        mFrameScheduled.set(false);
+
+        float rotateX, rotateY, zoom;
+        synchronized (mInputLock) {
+            rotateX = mPendingRotateX;
+            rotateY = mPendingRotateY;
+            zoom = mPendingZoom;
+            mPendingRotateX = 0;
+            mPendingRotateY = 0;
+            mPendingZoom = 0;
+        }
+        if (rotateX != 0) mRenderer.rotateX(rotateX);
+        if (rotateY != 0) mRenderer.rotateY(rotateY);
+        if (zoom != 0) mRenderer.zoom(zoom);
+        requestRender();
+    };
+
     public SphereSurfaceView(Context context) {
         super(context);
         init(this,context);
@@ -34,6 +78,7 @@ public class SphereSurfaceView extends GLSurfaceView  {
 
     private void init(SphereSurfaceView sphereSurfaceView, Context context){
         sphereSurfaceView.setEGLContextClientVersion(3);
+        mRenderer.setOnFrameAvailableListener(surfaceTexture -> scheduleRender());
         sphereSurfaceView.setRenderer(mRenderer);
         sphereSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
         Matrix.setIdentityM(mRotationMatrix, 0);
@@ -43,26 +88,121 @@ public class SphereSurfaceView extends GLSurfaceView  {
         return mRenderer;
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        Display display = getDisplay();
+        if (display != null) mDisplayRotation = display.getRotation();
+    }
+
+    /**
+     * Surface.ROTATION_* of the display as of the last layout, cheap enough for
+     * every sensor event.
+     */
+    int getDisplayRotation(){
+        return mDisplayRotation;
+    }
+
+    /**
+     * Adds a rotation in degrees. Deltas are accumulated and applied on the next vsync.
+     * Can be called from any thread.
+     */
+    public void addRotation(float x, float y){
+        synchronized (mInputLock) {
+            mPendingRotateX += x;
+            mPendingRotateY += y;
+        }
+        scheduleRender();
+    }
+
+    /**
+     * Adds a field of view change in degrees, applied on the next vsync.
+     */
+    public void addZoom(float fov){
+        synchronized (mInputLock) {
+            mPendingZoom += fov;
+        }
+        scheduleRender();
+    }
+
+    /**
+     * Requests one frame on the next vsync; further requests before it are merged.
+     * Can be called from any thread.
+     */
+    public void scheduleRender(){
+        if (mFrameScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+    }
+
+    /**
+     * Selects the projection of the source frames. For the equirectangular
+     * projection tessellation is the number of latitude rings, twice as many
+     * longitude sectors are used; for cube maps it is the subdivisions per face edge.
+     */
+    public void setProjection(int projection, int tessellation){
+        switch (projection) {
+            case PROJECTION_CUBE_MAP:
+                mRenderer.setMesh(Mesh.cubeMap(MESH_RADIUS, tessellation));
+                break;
+            case PROJECTION_EQUI_ANGULAR_CUBE_MAP:
+                mRenderer.setMesh(Mesh.equiAngularCubeMap(MESH_RADIUS, tessellation));
+                break;
+            default:
+                mRenderer.setMesh(Mesh.sphere(MESH_RADIUS, tessellation, 2 * tessellation));
+                break;
+        }
+        scheduleRender();
+    }
+
+    /**
+     * Culls the mesh tiles outside the view frustum before drawing. The visible
+     * tiles are reported to the listener, e.g. for a source that only decodes
+     * or streams those regions.
+     */
+    public void setTiledRendering(boolean enable, OnVisibleTilesChangedListener listener){
+        mRenderer.setTiledRendering(enable, listener);
+        scheduleRender();
+    }
+
 
     static class SphereRenderer implements Renderer {
         private Surface mSurface;
-        private SurfaceTexture mTexture;
+        private volatile SurfaceTexture mTexture;
+        private SurfaceTexture.OnFrameAvailableListener mFrameAvailableListener;
         private int mProgram;
         private int mPositionHandle;
         private int mTexCoordHandle;
         private int mMatrixHandle;
         private int mSamplerHandle;
-        private FloatBuffer mVertexBuffer;
-        private FloatBuffer mTexBuffer;
-        private final int mTriangleNum;
+        private Mesh mMesh;
+        private volatile Mesh mPendingMesh;
+        private volatile boolean mTiledRendering;
+        private volatile OnVisibleTilesChangedListener mVisibleTilesListener;
+        private int[] mVisibleTiles;
+        private volatile boolean mTilesChanged;
+        private final OrientationSlot mOrientation = new OrientationSlot(OrientationEngine.SAMPLE_SIZE);
+        private volatile boolean mOrientationEnabled;
+        private boolean mOrientationLatched;
+        private volatile int mPredictionMs;
+        private volatile float mMotionToPhotonMs = -1;
+        private final float[] mPredictionMatrix = new float[16];
+        private final float[] mPredictedMatrix = new float[16];
+        private static final float MAX_PREDICTION_S = 0.1f;
 
         private final float[] mProjectionMatrix = new float[16];
         private final float[] mCameraMatrix = new float[16];
+        private final float[] mViewMatrix = new float[16];
+        private final float[] mMVPMatrix = new float[16];
+        private final float[] mTempMatrix = new float[16];
+        private final float[] mRotationMatrix = new float[16];
+        private volatile boolean mProjectionDirty = true;
+        private volatile boolean mViewDirty = true;
 
         private float mAspect = 2.0f;
         private float mFov = 60.f;
-        public float mRotateX = 0.f;
-        public float mRotateY = 0.f;
+        public volatile float mRotateX = 0.f;
+        public volatile float mRotateY = 0.f;
 
         static final private  String VERTEX_SHADER = "uniform mat4 uMVPMatrix;" +
                 "attribute vec4 vPosition;" +
@@ -83,7 +223,11 @@ public class SphereSurfaceView extends GLSurfaceView  {
 
 
         public SphereRenderer(){
-            mTriangleNum = generateGeometry();
+            this(Mesh.sphere(MESH_RADIUS, 20, 40));
+        }
+
+        SphereRenderer(Mesh mesh){
+            mMesh = mesh;
             Matrix.setLookAtM(mCameraMatrix, 0, 0, 0, 0, 0, 0,
                     1000, 0, 1, 0);
         }
@@ -119,45 +263,122 @@ public class SphereSurfaceView extends GLSurfaceView  {
 
             mTexture = new SurfaceTexture(externalTextureId);
             mTexture.setDefaultBufferSize(100, 100);
+            mTexture.setOnFrameAvailableListener(mFrameAvailableListener);
 
 
             mSurface = new Surface(mTexture);
             return mSurface;
         }
 
+        /**
+         * A further producer surface on the texture, for callers that must not
+         * keep the shared one connected. Null before the GL surface is created.
+         */
+        public Surface createSurface(){
+            SurfaceTexture texture = mTexture;
+            return texture == null ? null : new Surface(texture);
+        }
+
+        /**
+         * Decoded frames reach the texture at their render time rather than when
+         * the decoder releases them, so redraws are driven from here.
+         */
+        public void setOnFrameAvailableListener(SurfaceTexture.OnFrameAvailableListener listener){
+            mFrameAvailableListener = listener;
+        }
+
         public void zoom(float val){
             mFov += val;
 
             if(mFov > 178.f) mFov = 178.f;
             if(mFov < 1.f) mFov = 1.f;
+            mProjectionDirty = true;
         }
 
 
         public void rotateX(float val){
             mRotateX += val;
+            mViewDirty = true;
         }
 
         public void rotateY(float val){
             mRotateY += val;
+            mViewDirty = true;
         }
 
         public void setXRotation(float val){
             mRotateX = val;
+            mViewDirty = true;
         }
 
         public void setYRotation(float val){
             mRotateY = val;
+            mViewDirty = true;
         }
 
 
 
+        /**
+         * Replaces the mesh. It is uploaded on the GL thread before the next frame.
+         */
+        void setMesh(Mesh mesh){
+            mPendingMesh = mesh;
+        }
+
+        OrientationSlot getOrientationSlot(){
+            return mOrientation;
+        }
+
+        /**
+         * While enabled the latest orientation published to the slot replaces the
+         * fixed camera; touch rotations still apply on top of it.
+         */
+        void setOrientationEnabled(boolean enable){
+            if (mOrientationEnabled == enable) return;
+            mOrientationEnabled = enable;
+            mViewDirty = true;
+        }
+
+        /**
+         * Extrapolates the orientation by the head motion expected until the frame
+         * is on screen: the age of the sample plus horizonMs. 0 disables it.
+         */
+        public void setOrientationPrediction(int horizonMs){
+            mPredictionMs = Math.max(0, horizonMs);
+        }
+
+        public int getOrientationPrediction(){
+            return mPredictionMs;
+        }
+
+        /**
+         * Smoothed time in milliseconds from an orientation sample to the submission
+         * of the frame showing it, or -1 before the first one. Display scan-out
+         * comes on top of this.
+         */
+        public float getMotionToPhotonLatencyMs(){
+            return mMotionToPhotonMs;
+        }
+
+        void setTiledRendering(boolean enable, OnVisibleTilesChangedListener listener){
+            mVisibleTilesListener = listener;
+            mTiledRendering = enable;
+            mTilesChanged = true;
+            mViewDirty = true;
+        }
+
+        /**
+         * Copies the texture rectangle of a tile as s0, t0, s1, t1. Tile numbers
+         * are the ones passed to {@link OnVisibleTilesChangedListener}.
+         */
+        public void getTileRegion(int tile, float[] region, int offset){
+            mMesh.getTileRegion(tile, region, offset);
+        }
+
         @Override
         public void onSurfaceCreated(GL10 gl, EGLConfig config) {
             getSurface();
-        }
 
-        @Override
-        public void onSurfaceChanged(GL10 gl, int width, int height) {
             mProgram = GLES20.glCreateProgram();
 
             int vertexShader = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
@@ -178,109 +399,121 @@ public class SphereSurfaceView extends GLSurfaceView  {
             mMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
             mSamplerHandle = GLES20.glGetUniformLocation(mProgram, "s_texture");
 
+            // Program and vertex state never change afterwards, so they are bound once here.
+            GLES20.glUseProgram(mProgram);
+            GLES20.glUniform1i(mSamplerHandle, 0);
+
+            Mesh pending = mPendingMesh;
+            if (pending != null) {
+                mPendingMesh = null;
+                mMesh = pending;
+            }
+            mMesh.upload();
+            mMesh.bind(mPositionHandle, mTexCoordHandle);
+            mProjectionDirty = true;
+        }
+
+        @Override
+        public void onSurfaceChanged(GL10 gl, int width, int height) {
+            GLES20.glViewport(0, 0, width, height);
             mAspect = (float) width / height;
-            Matrix.perspectiveM(mProjectionMatrix, 0, mFov,  mAspect,
-                    1, 1000f);
+            mProjectionDirty = true;
         }
 
         @Override
         public void onDrawFrame(GL10 gl) {
             mTexture.updateTexImage();
 
-            Matrix.perspectiveM(mProjectionMatrix, 0, mFov,  mAspect,
-                    1, 1000f);
-            float[] mvpMatrix = new float[16];
-            Matrix.multiplyMM(mvpMatrix, 0, mProjectionMatrix, 0, mCameraMatrix, 0);
-            Matrix.rotateM(mvpMatrix, 0, mRotateX, 1, 0, 0);
-            Matrix.rotateM(mvpMatrix, 0, mRotateY, 0, 1, 0);
+            Mesh pending = mPendingMesh;
+            if (pending != null) {
+                mPendingMesh = null;
+                mMesh.release();
+                mMesh = pending;
+                mMesh.upload();
+                mMesh.bind(mPositionHandle, mTexCoordHandle);
+                mTilesChanged = true;
+                mViewDirty = true;
+            }
+
+            // Latched as late as possible: right before the view matrix is built.
+            boolean latched = mOrientationEnabled && mOrientation.latch();
+            if (latched) {
+                mOrientationLatched = true;
+                mViewDirty = true;
+            }
+            if (mOrientationEnabled && mOrientationLatched && mPredictionMs > 0) {
+                mViewDirty = true;
+            }
+
+            boolean mvpDirty = false;
+            if (mProjectionDirty) {
+                mProjectionDirty = false;
+                Matrix.perspectiveM(mProjectionMatrix, 0, mFov,  mAspect,
+                        1, 1000f);
+                mvpDirty = true;
+            }
+            if (mViewDirty) {
+                mViewDirty = false;
+                Matrix.setRotateM(mRotationMatrix, 0, mRotateX, 1, 0, 0);
+                float[] camera = mOrientationEnabled && mOrientationLatched ? predictOrientation() : mCameraMatrix;
+                Matrix.multiplyMM(mTempMatrix, 0, camera, 0, mRotationMatrix, 0);
+                Matrix.setRotateM(mRotationMatrix, 0, mRotateY, 0, 1, 0);
+                Matrix.multiplyMM(mViewMatrix, 0, mTempMatrix, 0, mRotationMatrix, 0);
+                mvpDirty = true;
+            }
+            if (mvpDirty) {
+                Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
+                GLES20.glUniformMatrix4fv(mMatrixHandle, 1, false, mMVPMatrix, 0);
+                if (mTiledRendering) {
+                    if (mMesh.cull(mMVPMatrix) || mTilesChanged) {
+                        mTilesChanged = false;
+                        notifyVisibleTiles();
+                    }
+                } else {
+                    mMesh.uncull();
+                }
+            }
 
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-            GLES20.glUseProgram(mProgram);
-            GLES20.glEnableVertexAttribArray(mPositionHandle);
-            GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false,
-                    12, mVertexBuffer);
-            GLES20.glEnableVertexAttribArray(mTexCoordHandle);
-            GLES20.glVertexAttribPointer(mTexCoordHandle, 2, GLES20.GL_FLOAT, false, 0,
-                    mTexBuffer);
-            GLES20.glUniformMatrix4fv(mMatrixHandle, 1, false, mvpMatrix, 0);
-            GLES20.glUniform1i(mSamplerHandle, 0);
+            if (mTiledRendering) {
+                mMesh.drawVisible();
+            } else {
+                mMesh.draw();
+            }
+
+            if (latched) {
+                float latencyMs = (SystemClock.elapsedRealtimeNanos() - mOrientation.frontTimestamp()) / 1e6f;
+                mMotionToPhotonMs = mMotionToPhotonMs < 0 ? latencyMs : mMotionToPhotonMs * 0.9f + latencyMs * 0.1f;
+            }
+        }
 
-            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mTriangleNum);
-            GLES20.glDisableVertexAttribArray(mPositionHandle);
+        /**
+         * Rotates the latched sample further by its angular velocity over the
+         * prediction horizon.
+         */
+        private float[] predictOrientation(){
+            float[] sample = mOrientation.front();
+            int predictionMs = mPredictionMs;
+            float x = sample[16], y = sample[17], z = sample[18];
+            float speed = (float) Math.sqrt(x * x + y * y + z * z);
+            if (predictionMs <= 0 || speed == 0) return sample;
+
+            float seconds = (SystemClock.elapsedRealtimeNanos() - mOrientation.frontTimestamp()) / 1e9f
+                    + predictionMs / 1000f;
+            seconds = Math.max(0, Math.min(seconds, MAX_PREDICTION_S));
+            Matrix.setRotateM(mPredictionMatrix, 0, (float) Math.toDegrees(speed * seconds), x, y, z);
+            Matrix.multiplyMM(mPredictedMatrix, 0, mPredictionMatrix, 0, sample, 0);
+            return mPredictedMatrix;
         }
 
-        private int generateGeometry(){
-            final int CAP = 9;
-            final float r = 6;
-            final int triangleNum = (180 / CAP) * (360 / CAP) * 6 ;
-            float[] vertices = new float[triangleNum* 3];
-            float[] tex = new float[triangleNum * 2];
-
-            float x = 0;
-            float y = 0;
-            float z = 0;
-            int index = 0;
-            int index1 = 0;
-            double d = CAP * Math.PI / 180;
-            for (int i = 0; i < 180; i += CAP) {
-                double d1 = i * Math.PI / 180;
-            for (int j = 0; j < 360; j += CAP) {
-                double d2 = j * Math.PI / 180;
-                    vertices[index++] = (float) (x + r * Math.sin(d1 + d) * Math.cos(d2 + d));
-                    vertices[index++] = (float) (y + r * Math.cos(d1 + d));
-                    vertices[index++] = (float) (z + r * Math.sin(d1 + d) * Math.sin(d2 + d));
-                    tex[index1++] = (j + CAP) * 1f / 360;
-                    tex[index1++] = (i + CAP) * 1f / 180;
-
-                    vertices[index++] = (float) (x + r * Math.sin(d1) * Math.cos(d2));
-                    vertices[index++] = (float) (y + r * Math.cos(d1));
-                    vertices[index++] = (float) (z + r * Math.sin(d1) * Math.sin(d2));
-
-                    tex[index1++] = j * 1f / 360;
-                    tex[index1++] = i * 1f / 180;
-
-                    vertices[index++] = (float) (x + r * Math.sin(d1) * Math.cos(d2 + d));
-                    vertices[index++] = (float) (y + r * Math.cos(d1));
-                    vertices[index++] = (float) (z + r * Math.sin(d1) * Math.sin(d2 + d));
-
-                    tex[index1++] = (j + CAP) * 1f / 360;
-                    tex[index1++] = i * 1f / 180;
-
-                    vertices[index++] = (float) (x + r * Math.sin(d1 + d) * Math.cos(d2 + d));
-                    vertices[index++] = (float) (y + r * Math.cos(d1 + d));
-                    vertices[index++] = (float) (z + r * Math.sin(d1 + d) * Math.sin(d2 + d));
-
-                    tex[index1++] = (j + CAP) * 1f / 360;
-                    tex[index1++] = (i + CAP) * 1f / 180;
-
-                    vertices[index++] = (float) (x + r * Math.sin(d1 + d) * Math.cos(d2));
-                    vertices[index++] = (float) (y + r * Math.cos(d1 + d));
-                    vertices[index++] = (float) (z + r * Math.sin(d1 + d) * Math.sin(d2));
-
-                    tex[index1++] = j * 1f / 360;
-                    tex[index1++] = (i + CAP) * 1f / 180;
-
-                    vertices[index++] = (float) (x + r * Math.sin(d1) * Math.cos(d2));
-                    vertices[index++] = (float) (y + r * Math.cos(d1));
-                    vertices[index++] = (float) (z + r * Math.sin(d1) * Math.sin(d2));
-
-                    tex[index1++] = j * 1f / 360;
-                    tex[index1++] = i * 1f / 180;
-                }
+        private void notifyVisibleTiles(){
+            OnVisibleTilesChangedListener listener = mVisibleTilesListener;
+            if (listener == null) return;
+
+            if (mVisibleTiles == null || mVisibleTiles.length < mMesh.getTileCount()) {
+                mVisibleTiles = new int[mMesh.getTileCount()];
             }
-            mVertexBuffer = ByteBuffer.allocateDirect(vertices.length * 4)
-                    .order(ByteOrder.nativeOrder())
-                    .asFloatBuffer()
-                    .put(vertices);
-            mVertexBuffer.position(0);
-
-            mTexBuffer = ByteBuffer.allocateDirect(tex.length * 4)
-                    .order(ByteOrder.nativeOrder())
-                    .asFloatBuffer()
-                    .put(tex);
-            mTexBuffer.position(0);
-
-            return triangleNum;
+            listener.onVisibleTilesChanged(mVisibleTiles, mMesh.getVisibleTiles(mVisibleTiles));
         }
 
 
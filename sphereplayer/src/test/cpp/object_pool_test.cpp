@@ -0,0 +1,130 @@
+#include <thread>
+#include <vector>
+
+#include "ffmpeg/object_pool.h"
+#include "test.h"
+
+namespace {
+
+// Stands in for Frame and Packet: a handle that is null once moved from.
+class Object {
+   public:
+    static int alive;
+
+    Object() noexcept : mId(++next()) { ++alive; }
+
+    Object(Object&& other) noexcept : mId(other.mId), mRefs(other.mRefs) {
+        other.mId = 0;
+    }
+
+    Object& operator=(Object&& other) noexcept {
+        if (mId) --alive;
+        mId = other.mId;
+        mRefs = other.mRefs;
+        other.mId = 0;
+        return *this;
+    }
+
+    ~Object() {
+        if (mId) --alive;
+    }
+
+    // Only tested for null, like the AVFrame and AVPacket pointers.
+    const int* get() const noexcept { return mId ? &mId : nullptr; }
+
+    void unref() noexcept { mRefs = 0; }
+
+    int id() const noexcept { return mId; }
+
+    int refs() const noexcept { return mRefs; }
+
+    void ref() noexcept { ++mRefs; }
+
+   private:
+    int mId;
+    int mRefs = 0;
+
+    static int& next() {
+        static int next = 0;
+        return next;
+    }
+};
+
+int Object::alive = 0;
+
+using Pool = ffmpeg::ObjectPool<Object>;
+
+}  // namespace
+
+TEST(reusesReleasedObjects) {
+    Pool pool(4);
+    auto object = pool.acquire();
+    int id = object.id();
+    object.ref();
+    pool.release(std::move(object));
+
+    auto again = pool.acquire();
+    CHECK(again.id() == id);
+    CHECK(again.refs() == 0);
+    CHECK(pool.statistics().misses == 1);
+    CHECK(pool.statistics().hits == 1);
+}
+
+TEST(freesObjectsBeyondCapacity) {
+    int before = Object::alive;
+    {
+        Pool pool(2);
+        std::vector<Object> objects;
+        for (int i = 0; i < 3; ++i) objects.push_back(pool.acquire());
+        CHECK(Object::alive == before + 3);
+
+        for (auto& object : objects) pool.release(Object(std::move(object)));
+        CHECK(Object::alive == before + 2);
+    }
+    CHECK(Object::alive == before);
+}
+
+TEST(ignoresEmptyObjects) {
+    Pool pool(2);
+    auto object = pool.acquire();
+    Object moved(std::move(object));
+    pool.release(std::move(object));
+
+    pool.acquire();
+    CHECK(pool.statistics().hits == 0);
+    CHECK(pool.statistics().misses == 2);
+}
+
+TEST(leaseReturnsObject) {
+    Pool pool(2);
+    int id = 0;
+    {
+        auto lease = pool.lease();
+        id = lease->id();
+        auto moved = std::move(lease);
+        CHECK((*moved).id() == id);
+    }
+
+    CHECK(pool.acquire().id() == id);
+    CHECK(pool.statistics().hits == 1);
+}
+
+TEST(countsEveryAcquireAcrossThreads) {
+    const int threads = 4;
+    const int rounds = 10000;
+    Pool pool(8);
+
+    std::vector<std::thread> workers;
+    for (int i = 0; i < threads; ++i) {
+        workers.emplace_back([&pool] {
+            for (int j = 0; j < rounds; ++j) pool.release(pool.acquire());
+        });
+    }
+    for (auto& worker : workers) worker.join();
+
+    CHECK(pool.statistics().hits + pool.statistics().misses ==
+          (uint64_t)threads * rounds);
+    CHECK(pool.statistics().misses <= (uint64_t)threads);
+}
+
+int main() { return test::runAll(); }
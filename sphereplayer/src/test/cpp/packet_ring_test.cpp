@@ -0,0 +1,234 @@
+#include <chrono>
+#include <thread>
+#include <vector>
+
+#include "ffmpeg/packet_ring.h"
+#include "test.h"
+
+using ffmpeg::PacketRing;
+
+namespace {
+
+const uint8_t KEY[] = {0, 0, 1, 0x65, 0x88};
+const uint8_t REFERENCE[] = {0, 0, 1, 0x41, 0x9a};
+const uint8_t NON_REFERENCE[] = {0, 0, 1, 0x01, 0x9e};
+
+bool pushKey(PacketRing& ring, int64_t pts) {
+    return ring.push(KEY, sizeof(KEY), pts, true);
+}
+
+bool pushDelta(PacketRing& ring, int64_t pts) {
+    return ring.push(REFERENCE, sizeof(REFERENCE), pts, false);
+}
+
+// pts of the next packet, -1 if none is queued.
+int64_t popPTS(PacketRing& ring) {
+    uint8_t buf[16];
+    int64_t pts = -1;
+    return ring.pop(buf, sizeof(buf), pts, 0) > 0 ? pts : -1;
+}
+
+}  // namespace
+
+TEST(wrapsAround) {
+    PacketRing ring(4);
+    for (int64_t pts = 0; pts < 10; ++pts) {
+        uint8_t data[] = {(uint8_t)pts, 1, 2};
+        CHECK(ring.push(data, sizeof(data), pts, pts % 3 == 0));
+
+        uint8_t buf[16];
+        int64_t popped = -1;
+        CHECK(ring.pop(buf, sizeof(buf), popped, 0) == 3);
+        CHECK(popped == pts);
+        CHECK(buf[0] == (uint8_t)pts);
+    }
+    CHECK(ring.size() == 0);
+    CHECK(ring.statistics().pushed == 10);
+    CHECK(ring.statistics().popped == 10);
+}
+
+TEST(movingPopKeepsData) {
+    PacketRing ring(2);
+    std::vector<uint8_t> dst;
+    for (int64_t pts = 0; pts < 5; ++pts) {
+        pushKey(ring, pts);
+        int64_t popped = -1;
+        CHECK(ring.pop(dst, popped, 0) == (int)sizeof(KEY));
+        CHECK(popped == pts);
+        CHECK(dst == std::vector<uint8_t>(KEY, KEY + sizeof(KEY)));
+    }
+}
+
+TEST(skipsToNewestKeyFrame) {
+    PacketRing ring(8);
+    pushKey(ring, 0);
+    pushDelta(ring, 1);
+    pushKey(ring, 2);
+    pushDelta(ring, 3);
+
+    CHECK(ring.skipToNewestKeyFrame() == 2);
+    CHECK(ring.statistics().droppedOldest == 2);
+    CHECK(popPTS(ring) == 2);
+    CHECK(popPTS(ring) == 3);
+}
+
+TEST(skipWithoutKeyFrameWaitsForNext) {
+    PacketRing ring(8);
+    pushDelta(ring, 0);
+    pushDelta(ring, 1);
+
+    CHECK(ring.skipToNewestKeyFrame() == -1);
+    pushDelta(ring, 2);
+    CHECK(popPTS(ring) == -1);
+    pushKey(ring, 3);
+    CHECK(popPTS(ring) == 3);
+}
+
+TEST(discardDropsQueuedPackets) {
+    PacketRing ring(8);
+    pushKey(ring, 0);
+    pushDelta(ring, 1);
+    ring.discard();
+
+    // Deltas of the new position are undecodable without their key frame.
+    pushDelta(ring, 10);
+    CHECK(popPTS(ring) == -1);
+    pushKey(ring, 11);
+    pushDelta(ring, 12);
+    CHECK(popPTS(ring) == 11);
+    CHECK(popPTS(ring) == 12);
+    CHECK(ring.statistics().droppedOldest == 3);
+}
+
+TEST(dropsOversizedPacket) {
+    PacketRing ring(8);
+    pushKey(ring, 0);
+    pushDelta(ring, 1);
+    pushKey(ring, 2);
+
+    uint8_t small[2];
+    int64_t pts = -1;
+    CHECK(ring.pop(small, sizeof(small), pts, 0) == 0);
+    CHECK(ring.statistics().droppedOversized == 1);
+    CHECK(ring.statistics().popped == 0);
+    // The delta after it is dropped up to the next key frame.
+    CHECK(popPTS(ring) == 2);
+}
+
+TEST(blockWaitsForConsumer) {
+    PacketRing ring(1);
+    ring.setPolicy(PacketRing::BLOCK);
+    pushKey(ring, 0);
+
+    std::thread consumer([&ring] {
+        std::this_thread::sleep_for(std::chrono::milliseconds(150));
+        popPTS(ring);
+    });
+    CHECK(pushDelta(ring, 1));
+    consumer.join();
+
+    CHECK(ring.statistics().blockedUs > 0);
+    CHECK(popPTS(ring) == 1);
+}
+
+TEST(closeReleasesBlockedProducer) {
+    PacketRing ring(1);
+    ring.setPolicy(PacketRing::BLOCK);
+    pushKey(ring, 0);
+
+    std::thread closer([&ring] {
+        std::this_thread::sleep_for(std::chrono::milliseconds(50));
+        ring.close();
+    });
+    CHECK(!pushDelta(ring, 1));
+    closer.join();
+    CHECK(!pushKey(ring, 2));
+}
+
+TEST(discardReleasesBlockedProducer) {
+    PacketRing ring(1);
+    ring.setPolicy(PacketRing::BLOCK);
+    pushKey(ring, 0);
+
+    std::thread discarder([&ring] {
+        std::this_thread::sleep_for(std::chrono::milliseconds(50));
+        ring.discard();
+    });
+    CHECK(!pushDelta(ring, 1));
+    discarder.join();
+
+    CHECK(ring.statistics().droppedUntilKeyFrame == 1);
+    CHECK(popPTS(ring) == -1);
+    CHECK(pushKey(ring, 2));
+    CHECK(popPTS(ring) == 2);
+}
+
+TEST(dropOldestUntilKeyFrame) {
+    PacketRing ring(2);
+    ring.setPolicy(PacketRing::DROP_OLDEST_UNTIL_KEY_FRAME);
+    pushKey(ring, 0);
+    pushKey(ring, 1);
+
+    // Nobody consumes, so the packet and its followers go.
+    CHECK(!pushDelta(ring, 2));
+    CHECK(!pushDelta(ring, 3));
+    CHECK(ring.statistics().droppedUntilKeyFrame == 2);
+
+    // The consumer skipped to the newest key frame as the full ring asked.
+    CHECK(popPTS(ring) == 1);
+    CHECK(ring.statistics().droppedOldest == 1);
+    CHECK(!pushDelta(ring, 4));
+    CHECK(pushKey(ring, 5));
+    CHECK(popPTS(ring) == 5);
+}
+
+TEST(dropNonReference) {
+    PacketRing ring(1);
+    ring.setPolicy(PacketRing::DROP_NON_REFERENCE);
+    ring.setCodec(AV_CODEC_ID_H264);
+    pushKey(ring, 0);
+
+    auto begin = std::chrono::steady_clock::now();
+    CHECK(!ring.push(NON_REFERENCE, sizeof(NON_REFERENCE), 1, false));
+    CHECK(std::chrono::steady_clock::now() - begin <
+          std::chrono::milliseconds(50));
+    CHECK(ring.statistics().droppedNonReference == 1);
+
+    // A reference picture waits for room and is dropped after the timeout.
+    CHECK(!ring.push(REFERENCE, sizeof(REFERENCE), 2, false));
+    CHECK(ring.statistics().droppedUntilKeyFrame == 1);
+    CHECK(popPTS(ring) == 0);
+}
+
+TEST(classifiesH264) {
+    auto reference = [](std::vector<uint8_t> data) {
+        return ffmpeg::isReferencePacket(data.data(), (int)data.size(),
+                                         AV_CODEC_ID_H264);
+    };
+    CHECK(reference({0, 0, 0, 1, 0x65, 0x88}));  // IDR
+    CHECK(reference({0, 0, 1, 0x41, 0x9a}));     // slice, nal_ref_idc 2
+    CHECK(!reference({0, 0, 1, 0x01, 0x9e}));    // slice, nal_ref_idc 0
+    // SEI before a non-reference slice.
+    CHECK(!reference({0, 0, 1, 0x06, 0x05, 0, 0, 1, 0x01, 0x9e}));
+    // No picture at all, e.g. parameter sets only.
+    CHECK(reference({0, 0, 1, 0x67, 0x42, 0, 0, 1, 0x68, 0xce}));
+}
+
+TEST(classifiesHevc) {
+    auto reference = [](std::vector<uint8_t> data) {
+        return ffmpeg::isReferencePacket(data.data(), (int)data.size(),
+                                         AV_CODEC_ID_HEVC);
+    };
+    CHECK(!reference({0, 0, 1, 0x00, 0x01, 0xaf}));  // TRAIL_N
+    CHECK(reference({0, 0, 1, 0x02, 0x01, 0xaf}));   // TRAIL_R
+    CHECK(!reference({0, 0, 1, 0x10, 0x01, 0xaf}));  // RASL_N
+    CHECK(reference({0, 0, 1, 0x26, 0x01, 0xaf}));   // IDR_W_RADL
+    CHECK(reference({0, 0, 1, 0x40, 0x01, 0x0c}));   // VPS only
+}
+
+TEST(unknownCodecIsReference) {
+    CHECK(ffmpeg::isReferencePacket(NON_REFERENCE, sizeof(NON_REFERENCE),
+                                    AV_CODEC_ID_VP9));
+}
+
+int main() { return test::runAll(); }
@@ -0,0 +1,57 @@
+#ifndef SPHEREPLAYER_TEST_H
+#define SPHEREPLAYER_TEST_H
+
+#include <cstdio>
+#include <functional>
+#include <vector>
+
+// Minimal host test harness: TEST() registers a case, CHECK() records a
+// failure and carries on, main() runs every case and fails if any did.
+namespace test {
+
+struct Case {
+    const char* name;
+    std::function<void()> run;
+};
+
+inline std::vector<Case>& cases() {
+    static std::vector<Case> cases;
+    return cases;
+}
+
+inline int& failures() {
+    static int failures = 0;
+    return failures;
+}
+
+struct Registrar {
+    Registrar(const char* name, std::function<void()> run) {
+        cases().push_back({name, std::move(run)});
+    }
+};
+
+inline int runAll() {
+    for (auto& c : cases()) {
+        int before = failures();
+        c.run();
+        std::printf("%s %s\n", failures() == before ? "PASS" : "FAIL", c.name);
+    }
+    return failures() == 0 ? 0 : 1;
+}
+
+}  // namespace test
+
+#define TEST(name)                                       \
+    static void name();                                  \
+    static test::Registrar name##Registrar(#name, name); \
+    static void name()
+
+#define CHECK(condition)                                               \
+    do {                                                               \
+        if (!(condition)) {                                            \
+            std::printf("  %s:%d: %s\n", __FILE__, __LINE__, #condition); \
+            ++test::failures();                                        \
+        }                                                              \
+    } while (0)
+
+#endif  // SPHEREPLAYER_TEST_H
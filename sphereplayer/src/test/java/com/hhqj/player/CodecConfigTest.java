@@ -0,0 +1,106 @@
+package com.hhqj.player;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parameter set parsing of {@link CodecConfig}.
+ */
+public class CodecConfigTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0x95};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] VPS = {0x40, 0x01, 0x0c, 0x01};
+    private static final byte[] HEVC_SPS = {0x42, 0x01, 0x01, 0x01, 0x60};
+    private static final byte[] HEVC_PPS = {0x44, 0x01, (byte) 0xc1, 0x72};
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        byte[] out = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, out, offset, part.length);
+            offset += part.length;
+        }
+        return out;
+    }
+
+    private static byte[] annexB(byte[] nal) {
+        return concat(new byte[]{0, 0, 0, 1}, nal);
+    }
+
+    private static byte[] lengthPrefixed(byte[] nal) {
+        return concat(new byte[]{(byte) (nal.length >> 8), (byte) nal.length}, nal);
+    }
+
+    private static byte[] avcC() {
+        return concat(new byte[]{1, 0x42, (byte) 0xc0, 0x1e, (byte) 0xff, (byte) 0xe1},
+                lengthPrefixed(SPS), new byte[]{1}, lengthPrefixed(PPS));
+    }
+
+    private static byte[] hvcC() {
+        byte[] header = new byte[22];
+        header[0] = 1;
+        return concat(header, new byte[]{3},
+                new byte[]{(byte) 0xa0, 0, 1}, lengthPrefixed(VPS),
+                new byte[]{(byte) 0xa1, 0, 1}, lengthPrefixed(HEVC_SPS),
+                new byte[]{(byte) 0xa2, 0, 1}, lengthPrefixed(HEVC_PPS));
+    }
+
+    @Test
+    public void parsesAvcC() {
+        byte[][] csd = CodecConfig.avcParameterSets(avcC());
+        assertNotNull(csd);
+        assertArrayEquals(annexB(SPS), csd[0]);
+        assertArrayEquals(annexB(PPS), csd[1]);
+    }
+
+    @Test
+    public void parsesAvcAnnexB() {
+        // Three and four byte start codes, and a NAL unit that is neither.
+        byte[] extradata = concat(new byte[]{0, 0, 0, 1}, SPS, new byte[]{0, 0, 1, 0x06, 0x05},
+                new byte[]{0, 0, 0, 1}, PPS);
+        byte[][] csd = CodecConfig.avcParameterSets(extradata);
+        assertNotNull(csd);
+        assertArrayEquals(annexB(SPS), csd[0]);
+        assertArrayEquals(annexB(PPS), csd[1]);
+    }
+
+    @Test
+    public void rejectsAvcWithoutPps() {
+        assertNull(CodecConfig.avcParameterSets(annexB(SPS)));
+    }
+
+    @Test
+    public void rejectsTruncatedAvcC() {
+        byte[] full = avcC();
+        for (int length = 1; length < full.length; ++length) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(full, 0, truncated, 0, length);
+            assertNull(CodecConfig.avcParameterSets(truncated));
+        }
+    }
+
+    @Test
+    public void parsesHvcC() {
+        byte[] csd = CodecConfig.hevcParameterSets(hvcC());
+        assertArrayEquals(concat(annexB(VPS), annexB(HEVC_SPS), annexB(HEVC_PPS)), csd);
+    }
+
+    @Test
+    public void keepsHevcAnnexB() {
+        byte[] extradata = concat(annexB(VPS), annexB(HEVC_SPS), annexB(HEVC_PPS));
+        assertArrayEquals(extradata, CodecConfig.hevcParameterSets(extradata));
+    }
+
+    @Test
+    public void rejectsTruncatedHvcC() {
+        byte[] full = hvcC();
+        for (int length = 23; length < full.length; ++length) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(full, 0, truncated, 0, length);
+            assertNull(CodecConfig.hevcParameterSets(truncated));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.hhqj.player;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Render time decisions of {@link MediaClock}. Times are checked against
+ * System.nanoTime() with some slack for a slow test host.
+ */
+public class MediaClockTest {
+    private static final long SLACK_NS = 20_000_000L;
+
+    private static void assertNear(long expectedNs, long actualNs) {
+        assertTrue("expected " + expectedNs + " got " + actualNs, Math.abs(expectedNs - actualNs) <= SLACK_NS);
+    }
+
+    @Test
+    public void anchorsOnFirstFrame() {
+        MediaClock clock = new MediaClock();
+        long before = System.nanoTime();
+        long first = clock.renderTimeNs(5_000_000);
+        assertNear(before, first);
+
+        long second = clock.renderTimeNs(5_100_000);
+        assertNear(first + 100_000_000L, second);
+    }
+
+    @Test
+    public void framesWithoutTimestampAreDue() {
+        MediaClock clock = new MediaClock();
+        clock.renderTimeNs(0);
+        assertNear(System.nanoTime(), clock.renderTimeNs(-1));
+    }
+
+    @Test
+    public void lateThreshold() {
+        long now = System.nanoTime();
+        assertFalse(MediaClock.isLate(now, now));
+        assertFalse(MediaClock.isLate(now - MediaClock.LATE_THRESHOLD_NS, now));
+        assertTrue(MediaClock.isLate(now - MediaClock.LATE_THRESHOLD_NS - 1, now));
+    }
+
+    @Test
+    public void framesBeforeResyncAreLate() {
+        MediaClock clock = new MediaClock();
+        clock.renderTimeNs(0);
+        clock.resyncAt(10_000_000);
+
+        long now = System.nanoTime();
+        assertTrue(MediaClock.isLate(clock.renderTimeNs(9_000_000), now));
+
+        // The first frame at the resync point re-anchors the clock.
+        assertNear(System.nanoTime(), clock.renderTimeNs(10_000_000));
+        long next = clock.renderTimeNs(10_040_000);
+        assertFalse(MediaClock.isLate(next, System.nanoTime()));
+    }
+
+    @Test
+    public void reanchorsAfterJump() {
+        MediaClock clock = new MediaClock();
+        clock.renderTimeNs(0);
+
+        // Five seconds ahead of the clock: a restarted stream, not a frame to wait for.
+        assertNear(System.nanoTime(), clock.renderTimeNs(5_000_000));
+        // Back in time as well.
+        assertNear(System.nanoTime(), clock.renderTimeNs(1_000_000));
+    }
+
+    @Test
+    public void resetAnchorsAgain() {
+        MediaClock clock = new MediaClock();
+        clock.renderTimeNs(0);
+        assertTrue(clock.positionUs() >= 0);
+
+        clock.reset();
+        assertEquals(-1, clock.positionUs());
+        assertNear(System.nanoTime(), clock.renderTimeNs(500_000));
+    }
+
+    @Test
+    public void speedScalesRenderTime() {
+        MediaClock clock = new MediaClock();
+        clock.setSpeed(2.0f);
+        long first = clock.renderTimeNs(0);
+        assertNear(first + 50_000_000L, clock.renderTimeNs(100_000));
+
+        assertEquals(2.0f, clock.getSpeed(), 0);
+        clock.setSpeed(0);
+        assertEquals(2.0f, clock.getSpeed(), 0);
+    }
+
+    @Test
+    public void syncToWaitsForResync() {
+        MediaClock clock = new MediaClock();
+        long now = System.nanoTime();
+        clock.renderTimeNs(0);
+        clock.resyncAt(2_000_000);
+        clock.syncTo(1_000_000, now);
+
+        // Still late: the audio position did not override the pending resync.
+        assertTrue(MediaClock.isLate(clock.renderTimeNs(1_500_000), System.nanoTime()));
+    }
+}
@@ -0,0 +1,145 @@
+package com.hhqj.player;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Geometry, tile layout and frustum culling of {@link Mesh}. Only the CPU
+ * side is exercised, nothing is uploaded.
+ */
+public class MeshTest {
+    private static final int RINGS = 16;
+    private static final int SECTORS = 32;
+    private static final int TILE_ROWS = 4;
+    private static final int TILE_COLUMNS = 8;
+
+    /** Column-major perspective projection, as android.opengl.Matrix.perspectiveM. */
+    private static float[] perspective(float fovy, float aspect, float near, float far) {
+        float f = (float) (1 / Math.tan(Math.toRadians(fovy) / 2));
+        float[] m = new float[16];
+        m[0] = f / aspect;
+        m[5] = f;
+        m[10] = (far + near) / (near - far);
+        m[11] = -1;
+        m[14] = 2 * far * near / (near - far);
+        return m;
+    }
+
+    /** Rotation about the y axis, column-major. */
+    private static float[] rotateY(double degrees) {
+        float c = (float) Math.cos(Math.toRadians(degrees));
+        float s = (float) Math.sin(Math.toRadians(degrees));
+        return new float[]{c, 0, -s, 0, 0, 1, 0, 0, s, 0, c, 0, 0, 0, 0, 1};
+    }
+
+    private static float[] multiply(float[] a, float[] b) {
+        float[] m = new float[16];
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0;
+                for (int k = 0; k < 4; k++) sum += a[k * 4 + row] * b[column * 4 + k];
+                m[column * 4 + row] = sum;
+            }
+        }
+        return m;
+    }
+
+    /** Camera in the centre looking the given degrees around the y axis from -z. */
+    private static float[] lookingAround(double degrees) {
+        return multiply(perspective(90, 1, 0.1f, 100), rotateY(degrees));
+    }
+
+    private static boolean isVisible(Mesh mesh, int tile) {
+        int[] tiles = new int[mesh.getTileCount()];
+        int count = mesh.getVisibleTiles(tiles);
+        for (int i = 0; i < count; i++) {
+            if (tiles[i] == tile) return true;
+        }
+        return false;
+    }
+
+    private static int visibleCount(Mesh mesh) {
+        return mesh.getVisibleTiles(new int[mesh.getTileCount()]);
+    }
+
+    @Test
+    public void sphereCounts() {
+        Mesh mesh = Mesh.sphere(1, RINGS, SECTORS);
+        assertEquals(RINGS * SECTORS * 6, mesh.getIndexCount());
+        assertEquals((RINGS + 1) * (SECTORS + 1), mesh.getVertexCount());
+    }
+
+    @Test
+    public void cubeCounts() {
+        Mesh mesh = Mesh.cubeMap(1, 8);
+        assertEquals(6 * 8 * 8 * 6, mesh.getIndexCount());
+        assertEquals(6 * 9 * 9, mesh.getVertexCount());
+    }
+
+    @Test
+    public void sphereTilesPartitionTheTexture() {
+        Mesh mesh = Mesh.sphere(1, RINGS, SECTORS, TILE_ROWS, TILE_COLUMNS);
+        assertEquals(TILE_ROWS * TILE_COLUMNS, mesh.getTileCount());
+        assertEquals(RINGS * SECTORS * 6, mesh.getIndexCount());
+
+        float[] region = new float[4];
+        for (int row = 0; row < TILE_ROWS; row++) {
+            for (int column = 0; column < TILE_COLUMNS; column++) {
+                mesh.getTileRegion(row * TILE_COLUMNS + column, region, 0);
+                assertEquals((float) column / TILE_COLUMNS, region[0], 1e-6f);
+                assertEquals((float) row / TILE_ROWS, region[1], 1e-6f);
+                assertEquals((float) (column + 1) / TILE_COLUMNS, region[2], 1e-6f);
+                assertEquals((float) (row + 1) / TILE_ROWS, region[3], 1e-6f);
+            }
+        }
+    }
+
+    @Test
+    public void cubeTilesStayOnTheirFace() {
+        Mesh mesh = Mesh.cubeMap(1, 8);
+        assertEquals(6 * 4, mesh.getTileCount());
+
+        float[] region = new float[4];
+        for (int tile = 0; tile < mesh.getTileCount(); tile++) {
+            int face = tile / 4;
+            float s0 = (face % 3) / 3f;
+            float t0 = (face / 3) / 2f;
+            mesh.getTileRegion(tile, region, 0);
+            assertTrue(region[0] >= s0 - 1e-6f && region[2] <= s0 + 1 / 3f + 1e-6f);
+            assertTrue(region[1] >= t0 - 1e-6f && region[3] <= t0 + 1 / 2f + 1e-6f);
+            // A quarter of the face.
+            assertEquals(1 / 6f, region[2] - region[0], 1e-6f);
+            assertEquals(1 / 4f, region[3] - region[1], 1e-6f);
+        }
+    }
+
+    @Test
+    public void cullsTilesBehindTheCamera() {
+        Mesh mesh = Mesh.sphere(1, RINGS, SECTORS, TILE_ROWS, TILE_COLUMNS);
+        assertEquals(mesh.getTileCount(), visibleCount(mesh));
+
+        assertTrue(mesh.cull(lookingAround(0)));
+        // -z is at longitude 0.75 on the equator, +z at 0.25.
+        assertTrue(isVisible(mesh, TILE_COLUMNS + 5));
+        assertTrue(isVisible(mesh, 2 * TILE_COLUMNS + 6));
+        assertFalse(isVisible(mesh, TILE_COLUMNS + 1));
+        assertFalse(isVisible(mesh, 2 * TILE_COLUMNS + 2));
+        assertTrue(visibleCount(mesh) < mesh.getTileCount());
+
+        assertFalse(mesh.cull(lookingAround(0)));
+    }
+
+    @Test
+    public void turningAroundSwapsVisibleTiles() {
+        Mesh mesh = Mesh.sphere(1, RINGS, SECTORS, TILE_ROWS, TILE_COLUMNS);
+        mesh.cull(lookingAround(0));
+
+        assertTrue(mesh.cull(lookingAround(180)));
+        assertTrue(isVisible(mesh, TILE_COLUMNS + 1));
+        assertFalse(isVisible(mesh, TILE_COLUMNS + 5));
+
+        mesh.uncull();
+        assertEquals(mesh.getTileCount(), visibleCount(mesh));
+    }
+}